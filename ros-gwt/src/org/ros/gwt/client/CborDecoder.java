@@ -0,0 +1,205 @@
+package org.ros.gwt.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.json.client.JSONObject;
+
+/**
+ * Decoder of binary (CBOR) frames, sent by rosbridge for topics
+ * subscribed with compression="cbor".
+ *
+ * The frame is decoded into plain JS objects, so it can be wrapped in a
+ * {@link JSONObject} and handled like a parsed text frame. Byte strings
+ * and typed arrays (RFC 8746 tags) are decoded into typed-array views
+ * of the frame buffer, without copying, when their alignment and byte
+ * order allow it (rosbridge uses little-endian tags). The generated
+ * messages read them through {@link org.ros.gwt.client.msg_core.ArrayCodec}.
+ *
+ * 64-bit integers are decoded as doubles.
+ *
+ * @author Federico Ferri
+ *
+ */
+class CborDecoder {
+	private CborDecoder() {}
+
+	/**
+	 * Decode a binary frame.
+	 *
+	 * @param buffer The ArrayBuffer of the frame.
+	 * @return The decoded frame, or null if it is not a valid CBOR map.
+	 */
+	public static JSONObject decodeFrame(JavaScriptObject buffer) {
+		JavaScriptObject frame;
+		try {
+			frame = decode(buffer);
+		} catch(RuntimeException e) {
+			System.out.println("Malformed CBOR frame: " + e.getMessage());
+			return null;
+		}
+		if(frame == null || !isObject(frame)) {
+			System.out.println("Unhandled CBOR frame");
+			return null;
+		}
+		return new JSONObject(frame);
+	}
+
+	private static native boolean isObject(JavaScriptObject o) /*-{
+		return typeof o === 'object' && !(o instanceof Array) && !ArrayBuffer.isView(o);
+	}-*/;
+
+	public static native JavaScriptObject decode(JavaScriptObject buffer) /*-{
+		var view = new DataView(buffer);
+		var bytes = new Uint8Array(buffer);
+		var pos = 0;
+		var littleEndian = new Uint8Array(new Uint16Array([1]).buffer)[0] === 1;
+		var BREAK = {};
+
+		function readLength(info) {
+			if(info < 24) return info;
+			var v;
+			if(info === 24) { v = view.getUint8(pos); pos += 1; }
+			else if(info === 25) { v = view.getUint16(pos); pos += 2; }
+			else if(info === 26) { v = view.getUint32(pos); pos += 4; }
+			else if(info === 27) { v = view.getUint32(pos) * 4294967296 + view.getUint32(pos + 4); pos += 8; }
+			else if(info === 31) return -1;
+			else throw new Error('invalid additional info ' + info);
+			return v;
+		}
+
+		function readHalf() {
+			var h = view.getUint16(pos);
+			pos += 2;
+			var e = (h & 0x7c00) >> 10, f = h & 0x03ff;
+			var v = e === 0 ? f * Math.pow(2, -24) : e === 31 ? (f ? NaN : Infinity) : (f + 1024) * Math.pow(2, e - 25);
+			return h & 0x8000 ? -v : v;
+		}
+
+		function readText(length) {
+			var sub = bytes.subarray(pos, pos + length);
+			pos += length;
+			if(typeof TextDecoder === 'function')
+				return new TextDecoder('utf-8').decode(sub);
+			var s = '';
+			for(var i = 0; i < sub.length; i += 8192)
+				s += String.fromCharCode.apply(null, sub.subarray(i, i + 8192));
+			return decodeURIComponent(escape(s));
+		}
+
+		// RFC 8746 typed arrays: tag -> [constructor, element size, little endian, DataView getter]
+		var TYPED = {
+			64: [Uint8Array, 1, true, 'getUint8'],
+			65: [Uint16Array, 2, false, 'getUint16'],
+			66: [Uint32Array, 4, false, 'getUint32'],
+			67: [Float64Array, 8, false, 'getUint64'],
+			68: [Uint8ClampedArray, 1, true, 'getUint8'],
+			69: [Uint16Array, 2, true, 'getUint16'],
+			70: [Uint32Array, 4, true, 'getUint32'],
+			71: [Float64Array, 8, true, 'getUint64'],
+			72: [Int8Array, 1, true, 'getInt8'],
+			73: [Int16Array, 2, false, 'getInt16'],
+			74: [Int32Array, 4, false, 'getInt32'],
+			75: [Float64Array, 8, false, 'getInt64'],
+			77: [Int16Array, 2, true, 'getInt16'],
+			78: [Int32Array, 4, true, 'getInt32'],
+			79: [Float64Array, 8, true, 'getInt64'],
+			81: [Float32Array, 4, false, 'getFloat32'],
+			82: [Float64Array, 8, false, 'getFloat64'],
+			85: [Float32Array, 4, true, 'getFloat32'],
+			86: [Float64Array, 8, true, 'getFloat64']
+		};
+
+		function typedArray(tag, data) {
+			var t = TYPED[tag];
+			var Type = t[0], size = t[1], le = t[2], getter = t[3];
+			var offset = data.byteOffset, n = data.byteLength / size;
+			var is64 = getter === 'getUint64' || getter === 'getInt64';
+			if(!is64 && (size === 1 || (le === littleEndian && offset % size === 0)))
+				return new Type(data.buffer, offset, n);
+			var out = new Type(n);
+			var dv = new DataView(data.buffer, offset, data.byteLength);
+			for(var i = 0; i < n; i++) {
+				if(getter === 'getUint64') {
+					var lo = dv.getUint32(i * 8 + (le ? 0 : 4), le), hi = dv.getUint32(i * 8 + (le ? 4 : 0), le);
+					out[i] = hi * 4294967296 + lo;
+				} else if(getter === 'getInt64') {
+					var lo = dv.getUint32(i * 8 + (le ? 0 : 4), le), hi = dv.getInt32(i * 8 + (le ? 4 : 0), le);
+					out[i] = hi * 4294967296 + lo;
+				} else {
+					out[i] = dv[getter](i * size, le);
+				}
+			}
+			return out;
+		}
+
+		function readItem() {
+			var initial = view.getUint8(pos++);
+			var major = initial >> 5, info = initial & 0x1f;
+			if(major === 7) {
+				if(info === 20) return false;
+				if(info === 21) return true;
+				if(info === 22 || info === 23) return null;
+				if(info === 25) return readHalf();
+				if(info === 26) { var f = view.getFloat32(pos); pos += 4; return f; }
+				if(info === 27) { var d = view.getFloat64(pos); pos += 8; return d; }
+				if(info === 31) return BREAK;
+				if(info === 24) { pos += 1; return null; }
+				return null;
+			}
+			var length = readLength(info);
+			switch(major) {
+			case 0:
+				return length;
+			case 1:
+				return -1 - length;
+			case 2:
+			case 3:
+				if(length < 0) {
+					var chunks = [], total = 0;
+					for(var c = readItem(); c !== BREAK; c = readItem()) {
+						chunks.push(c);
+						total += c.length;
+					}
+					if(major === 3) return chunks.join('');
+					var joined = new Uint8Array(total);
+					for(var j = 0, o = 0; j < chunks.length; o += chunks[j].length, j++)
+						joined.set(chunks[j], o);
+					return joined;
+				}
+				if(major === 3) return readText(length);
+				var b = new Uint8Array(buffer, pos, length);
+				pos += length;
+				return b;
+			case 4:
+				var a = [];
+				if(length < 0) {
+					for(var x = readItem(); x !== BREAK; x = readItem())
+						a.push(x);
+				} else {
+					for(var k = 0; k < length; k++)
+						a.push(readItem());
+				}
+				return a;
+			case 5:
+				var m = {};
+				if(length < 0) {
+					for(var key = readItem(); key !== BREAK; key = readItem())
+						m[key] = readItem();
+				} else {
+					for(var p = 0; p < length; p++) {
+						var mk = readItem();
+						m[mk] = readItem();
+					}
+				}
+				return m;
+			case 6:
+				var value = readItem();
+				if(TYPED[length] && value instanceof Uint8Array)
+					return typedArray(length, value);
+				return value;
+			}
+			throw new Error('invalid major type ' + major);
+		}
+
+		return readItem();
+	}-*/;
+}
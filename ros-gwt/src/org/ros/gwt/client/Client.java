@@ -4,7 +4,7 @@ import java.util.List;
 
 import org.ros.gwt.client.ROS.ConnectionStateListener;
 import org.ros.gwt.client.msg.Twist;
-import org.ros.gwt.client.msg.Vector3;
+import org.ros.gwt.client.msg.geometry_msgs.Vector3;
 
 import com.google.gwt.core.client.Callback;
 import com.google.gwt.core.client.EntryPoint;
@@ -23,6 +23,14 @@ import de.csenk.gwt.ws.client.js.JavaScriptWebSocket;
 public class Client implements EntryPoint {
 	private ROS ros;
 	
+	/**
+	 * Handles in use, kept across clicks and released when the name changes.
+	 */
+	private ROS.Topic pubTopic;
+	private ROS.Topic subTopic;
+	private ROS.Subscription subscription;
+	private ROS.Service service;
+	
 	private final TextBox txtAddr = new TextBox();
 	private final Button btnConnect = new Button("Connect");
 	private final Button btnDisconnect = new Button("Disconnect");
@@ -84,6 +92,9 @@ public class Client implements EntryPoint {
 		btnConnect.addClickHandler(new ClickHandler() {
 			public void onClick(ClickEvent event) {
 				ros = new ROS(txtAddr.getText(), connStateListener);
+				pubTopic = subTopic = null;
+				subscription = null;
+				service = null;
 			}
 		});
 		btnDisconnect.addClickHandler(new ClickHandler() {
@@ -143,8 +154,9 @@ public class Client implements EntryPoint {
 		txtTopicPayload.setText(new Twist(new Vector3(1, 0, 0), new Vector3(0, 0, 0)).toJSON().toString());
 		btnPublish.addClickHandler(new ClickHandler() {
 			public void onClick(ClickEvent event) {
-				ROS.Topic topic = ros.newTopic(txtTopicName.getText(), txtTopicType.getText());
-				topic.publish(JSONParser.parseStrict(txtTopicPayload.getText()));
+				pubTopic = getTopic(pubTopic, txtTopicName.getText(), txtTopicType.getText());
+				if(pubTopic != null)
+					pubTopic.publish(JSONParser.parseStrict(txtTopicPayload.getText()));
 			}
 		});
 		
@@ -157,8 +169,9 @@ public class Client implements EntryPoint {
 		btnUnsubscribe.setEnabled(false);
 		btnSubscribe.addClickHandler(new ClickHandler() {
 			public void onClick(ClickEvent event) {
-				ROS.Topic topic = ros.newTopic(txtTopicNamePub.getText(), txtTopicTypePub.getText());
-				topic.subscribe(new ROS.MessageListener() {
+				subTopic = getTopic(subTopic, txtTopicNamePub.getText(), txtTopicTypePub.getText());
+				if(subTopic == null) return;
+				subscription = subTopic.subscribe(new ROS.MessageListener() {
 					public void onMessage(JSONObject result) {
 						log(result.toString());
 					}
@@ -169,8 +182,9 @@ public class Client implements EntryPoint {
 		});
 		btnUnsubscribe.addClickHandler(new ClickHandler() {
 			public void onClick(ClickEvent event) {
-				ROS.Topic topic = ros.newTopic(txtTopicNamePub.getText(), txtTopicTypePub.getText());
-				topic.unsubscribe();
+				if(subscription != null)
+					subscription.unsubscribe();
+				subscription = null;
 				btnSubscribe.setEnabled(true);
 				btnUnsubscribe.setEnabled(false);
 			}
@@ -186,13 +200,27 @@ public class Client implements EntryPoint {
 		txtServiceType.setText("homework0/Sum");
 		btnCallService.addClickHandler(new ClickHandler() {
 			public void onClick(ClickEvent event) {
+				if(service == null || !service.getName().equals(txtServiceName.getText())) {
+					if(service != null) service.release();
+					service = null;
+					try {
+						service = ros.newService(txtServiceName.getText(), txtServiceType.getText());
+					} catch(IllegalArgumentException e) {
+						log(e.getMessage());
+						return;
+					}
+				}
 				btnCallService.setEnabled(false);
-				ROS.Service s = ros.newService(txtServiceName.getText(), txtServiceType.getText());
-				s.callService(JSONParser.parseStrict(txtServiceArgs.getText()).isObject(), new ROS.MessageListener() {
-					public void onMessage(JSONObject result) {
+				service.call(JSONParser.parseStrict(txtServiceArgs.getText()).isObject(), new Callback<JSONObject, ServiceCallException>() {
+					public void onSuccess(JSONObject result) {
 						txtServiceResult.setText(result.toString());
 						btnCallService.setEnabled(true);
 					}
+					
+					public void onFailure(ServiceCallException reason) {
+						log("Service call failed: " + reason.getMessage());
+						btnCallService.setEnabled(true);
+					}
 				});
 			}
 		});
@@ -207,6 +235,7 @@ public class Client implements EntryPoint {
 			public void onClick(ClickEvent event) {
 				ROS.Param param = ros.newParam(txtParamName.getText());
 				param.set(txtParamValue.getText());
+				param.release();
 			}
 		});
 		btnParamGet.addClickHandler(new ClickHandler() {
@@ -217,10 +246,28 @@ public class Client implements EntryPoint {
 						Window.alert(txtParamName.getText() + " := " + value);
 					}
 				});
+				param.release();
 			}
 		});
 	}
 	
+	/**
+	 * Reuse the handle of a topic, or release it and get the handle of
+	 * another topic if the name has changed.
+	 */
+	private ROS.Topic getTopic(ROS.Topic current, String name, String type) {
+		if(current != null && current.getName().equals(name) && type.equals(current.getMessageType()))
+			return current;
+		if(current != null)
+			current.release();
+		try {
+			return ros.newTopic(name, type);
+		} catch(IllegalArgumentException e) {
+			log(e.getMessage());
+			return null;
+		}
+	}
+	
 	private void log(String s) {
 		RootPanel.get("log").add(new Label(s));
 	}
@@ -0,0 +1,151 @@
+package org.ros.gwt.client;
+
+/**
+ * The routing fields (op, topic, id) of a rosbridge frame, extracted
+ * from the raw text without parsing the whole frame.
+ *
+ * Scanning stops as soon as the fields needed to route the frame have
+ * been found, so for the usual key order ("op", "topic", "msg") the
+ * payload is never looked at.
+ *
+ * @author Federico Ferri
+ *
+ */
+class Envelope {
+	public String op;
+	public String topic;
+	public String id;
+
+	private final String raw;
+	private int pos;
+
+	private Envelope(String raw) {
+		this.raw = raw;
+	}
+
+	/**
+	 * Scan the top level keys of a frame.
+	 *
+	 * @param raw The raw frame text.
+	 * @return The envelope, or null if the frame can't be scanned
+	 *         cheaply (in which case it should just be parsed).
+	 */
+	public static Envelope scan(String raw) {
+		Envelope e = new Envelope(raw);
+		return e.scanObject() ? e : null;
+	}
+
+	private boolean isComplete() {
+		if(op == null) return false;
+		if(op.equals("publish")) return topic != null;
+		if(op.equals("service_response")) return id != null;
+		return true;
+	}
+
+	/**
+	 * Every read is bounds checked: a truncated frame must end the scan,
+	 * as charAt() past the end is not guaranteed to throw under GWT.
+	 */
+	private boolean atEnd() {
+		return pos >= raw.length();
+	}
+
+	private boolean scanObject() {
+		skipWhitespace();
+		if(atEnd() || raw.charAt(pos++) != '{') return false;
+		skipWhitespace();
+		if(atEnd()) return false;
+		if(raw.charAt(pos) == '}') return op != null;
+		while(true) {
+			skipWhitespace();
+			String key = readString();
+			if(key == null) return false;
+			skipWhitespace();
+			if(atEnd() || raw.charAt(pos++) != ':') return false;
+			skipWhitespace();
+			if(atEnd()) return false;
+			if(key.equals("op") || key.equals("topic") || key.equals("id")) {
+				if(raw.charAt(pos) == '"') {
+					String value = readString();
+					if(value == null) return false;
+					if(key.equals("op")) op = value;
+					else if(key.equals("topic")) topic = value;
+					else id = value;
+				} else if(!skipValue()) {
+					return false;
+				}
+				if(isComplete()) return true;
+			} else if(!skipValue()) {
+				return false;
+			}
+			skipWhitespace();
+			if(atEnd()) return false;
+			char c = raw.charAt(pos++);
+			if(c == '}') return op != null;
+			if(c != ',') return false;
+		}
+	}
+
+	/**
+	 * Read a string without escapes; escaped strings are not handled.
+	 *
+	 * @return The string, or null if escaped or truncated.
+	 */
+	private String readString() {
+		if(atEnd() || raw.charAt(pos) != '"') return null;
+		int start = ++pos;
+		while(!atEnd()) {
+			char c = raw.charAt(pos);
+			if(c == '\\') return null;
+			if(c == '"') return raw.substring(start, pos++);
+			pos++;
+		}
+		return null;
+	}
+
+	/**
+	 * @return false if truncated.
+	 */
+	private boolean skipString() {
+		pos++;
+		while(!atEnd()) {
+			char c = raw.charAt(pos++);
+			if(c == '\\') pos++;
+			else if(c == '"') return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return false if truncated.
+	 */
+	private boolean skipValue() {
+		int depth = 0;
+		while(!atEnd()) {
+			char c = raw.charAt(pos);
+			if(c == '"') {
+				if(!skipString()) return false;
+				if(depth == 0) return true;
+				continue;
+			}
+			if(c == '{' || c == '[') {
+				depth++;
+			} else if(c == '}' || c == ']') {
+				if(depth == 0) return true;
+				if(--depth == 0) {
+					pos++;
+					return true;
+				}
+			} else if(c == ',' && depth == 0) {
+				return true;
+			}
+			pos++;
+		}
+		return false;
+	}
+
+	private void skipWhitespace() {
+		while(pos < raw.length() && raw.charAt(pos) <= ' ')
+			pos++;
+	}
+}
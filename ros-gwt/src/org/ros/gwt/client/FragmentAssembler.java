@@ -0,0 +1,200 @@
+package org.ros.gwt.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.json.client.JSONNumber;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONString;
+import com.google.gwt.json.client.JSONValue;
+import com.google.gwt.user.client.Timer;
+
+/**
+ * Reassembler of fragment ops (sent by rosbridge for subscriptions with
+ * a fragment_size, when a frame is bigger than that).
+ *
+ * Fragments are collected by message id, in a buffer sized from the
+ * total number of fragments. The id is compared by its JSON text, as
+ * it may be a string, a number or null (e.g. for publish ops, which
+ * rosbridge may send without an id).
+ *
+ * The reassembled frame is delivered to {@link ROS#onMessage(String)}
+ * as soon as the last fragment arrives.
+ *
+ * Incomplete messages are dropped after a timeout (checked by a timer,
+ * even if no more fragments arrive), and (oldest first) when the
+ * buffered fragments exceed a memory limit.
+ *
+ * @author Federico Ferri
+ *
+ */
+class FragmentAssembler {
+	private static class Fragments {
+		public final String[] data;
+		public final double created;
+		public int received = 0;
+		public int length = 0;
+
+		public Fragments(int total, double created) {
+			this.data = new String[total];
+			this.created = created;
+		}
+	}
+
+	private final ROS ros;
+
+	/**
+	 * Drops the expired messages, while any are pending.
+	 */
+	private final Timer expiryTimer = new Timer() {
+		@Override
+		public void run() {
+			expiryScheduled = false;
+			evictExpired(Duration.currentTimeMillis());
+			scheduleExpiry();
+		}
+	};
+	private boolean expiryScheduled = false;
+
+	/**
+	 * Incomplete messages, keyed by the JSON text of the id, oldest first.
+	 */
+	private final Map<String, Fragments> pending = new LinkedHashMap<String, Fragments>();
+	private int bufferedLength = 0;
+
+	private int timeout = 10000;
+	private int memoryLimit = 16 * 1024 * 1024;
+	private int droppedMessages = 0;
+
+	public FragmentAssembler(ROS ros) {
+		this.ros = ros;
+	}
+
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public void setMemoryLimit(int memoryLimit) {
+		this.memoryLimit = memoryLimit;
+	}
+
+	public int getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	public int getDroppedMessageCount() {
+		return droppedMessages;
+	}
+
+	/**
+	 * Drop all the incomplete messages.
+	 */
+	public void clear() {
+		pending.clear();
+		bufferedLength = 0;
+		expiryTimer.cancel();
+		expiryScheduled = false;
+	}
+
+	/**
+	 * Add a fragment.
+	 *
+	 * @param message The fragment op.
+	 */
+	public void add(JSONObject message) {
+		JSONValue idValue = message.get("id");
+		String id = String.valueOf(idValue);
+		String data = getString(message, "data");
+		int num = getInt(message, "num");
+		int total = getInt(message, "total");
+		if((idValue != null && idValue.isString() == null && idValue.isNumber() == null && idValue.isNull() == null)
+				|| data == null || total <= 0 || num < 0 || num >= total) {
+			System.out.println("Malformed fragment: " + message.toString());
+			return;
+		}
+
+		double now = Duration.currentTimeMillis();
+		evictExpired(now);
+
+		Fragments f = pending.get(id);
+		if(f != null && f.data.length != total) {
+			remove(id, f);
+			droppedMessages++;
+			f = null;
+		}
+		if(f == null) {
+			if(total == 1) {
+				ros.onMessage(data);
+				return;
+			}
+			pending.put(id, f = new Fragments(total, now));
+			scheduleExpiry();
+		}
+		if(f.data[num] != null) return;
+		f.data[num] = data;
+		f.received++;
+		f.length += data.length();
+		bufferedLength += data.length();
+
+		if(f.received == total) {
+			remove(id, f);
+			StringBuilder sb = new StringBuilder(f.length);
+			for(int i = 0; i < total; i++)
+				sb.append(f.data[i]);
+			ros.onMessage(sb.toString());
+			return;
+		}
+
+		evictOverLimit();
+	}
+
+	private void remove(String id, Fragments f) {
+		pending.remove(id);
+		bufferedLength -= f.length;
+	}
+
+	private void scheduleExpiry() {
+		if(expiryScheduled || pending.isEmpty()) return;
+		// the oldest message expires first:
+		double created = pending.values().iterator().next().created;
+		expiryScheduled = true;
+		expiryTimer.schedule(Math.max(1, (int)(created + timeout - Duration.currentTimeMillis())));
+	}
+
+	private void evictExpired(double now) {
+		for(Iterator<Fragments> i = pending.values().iterator(); i.hasNext(); ) {
+			Fragments f = i.next();
+			if(now - f.created < timeout) break;
+			i.remove();
+			bufferedLength -= f.length;
+			droppedMessages++;
+		}
+	}
+
+	private void evictOverLimit() {
+		for(Iterator<Fragments> i = pending.values().iterator(); bufferedLength > memoryLimit && i.hasNext(); ) {
+			Fragments f = i.next();
+			i.remove();
+			bufferedLength -= f.length;
+			droppedMessages++;
+		}
+	}
+
+	private static String getString(JSONObject message, String key) {
+		JSONValue v = message.get(key);
+		JSONString s = v == null ? null : v.isString();
+		return s == null ? null : s.stringValue();
+	}
+
+	private static int getInt(JSONObject message, String key) {
+		JSONValue v = message.get(key);
+		JSONNumber n = v == null ? null : v.isNumber();
+		return n == null ? -1 : (int)n.doubleValue();
+	}
+}
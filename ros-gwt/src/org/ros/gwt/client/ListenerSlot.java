@@ -0,0 +1,99 @@
+package org.ros.gwt.client;
+
+import org.ros.gwt.client.ROS.MessageListener;
+
+import com.google.gwt.json.client.JSONObject;
+
+/**
+ * Copy-on-write list of {@link MessageListener}s for one op or topic.
+ *
+ * Dispatch iterates over a snapshot, so listeners can add or remove
+ * listeners (including themselves) while being called.
+ *
+ * A listener added more than once is called once, and stays until it
+ * has been removed as many times as it was added.
+ *
+ * @author Federico Ferri
+ *
+ */
+class ListenerSlot {
+	private static final MessageListener[] EMPTY = new MessageListener[0];
+	private static final int[] NO_COUNTS = new int[0];
+
+	private MessageListener[] listeners = EMPTY;
+
+	/**
+	 * Number of registrations of each listener, by index.
+	 */
+	private int[] counts = NO_COUNTS;
+
+	/**
+	 * @return true if the listener was not in the slot yet.
+	 */
+	public boolean add(MessageListener listener) {
+		int i = indexOf(listener);
+		if(i >= 0) {
+			counts[i]++;
+			return false;
+		}
+		MessageListener[] l = new MessageListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, l, 0, listeners.length);
+		l[listeners.length] = listener;
+		int[] c = new int[counts.length + 1];
+		System.arraycopy(counts, 0, c, 0, counts.length);
+		c[counts.length] = 1;
+		listeners = l;
+		counts = c;
+		return true;
+	}
+
+	/**
+	 * @return true if the listener has been taken out of the slot
+	 *         (i.e. this was its last registration).
+	 */
+	public boolean remove(MessageListener listener) {
+		int i = indexOf(listener);
+		if(i < 0) return false;
+		if(--counts[i] > 0) return false;
+		if(listeners.length == 1) {
+			clear();
+			return true;
+		}
+		MessageListener[] l = new MessageListener[listeners.length - 1];
+		System.arraycopy(listeners, 0, l, 0, i);
+		System.arraycopy(listeners, i + 1, l, i, l.length - i);
+		int[] c = new int[counts.length - 1];
+		System.arraycopy(counts, 0, c, 0, i);
+		System.arraycopy(counts, i + 1, c, i, c.length - i);
+		listeners = l;
+		counts = c;
+		return true;
+	}
+
+	public void clear() {
+		listeners = EMPTY;
+		counts = NO_COUNTS;
+	}
+
+	public boolean isEmpty() {
+		return listeners.length == 0;
+	}
+
+	public int size() {
+		return listeners.length;
+	}
+
+	public void dispatch(JSONObject message) {
+		MessageListener[] l = listeners;
+		for(int i = 0; i < l.length; i++) {
+			l[i].onMessage(message);
+		}
+	}
+
+	private int indexOf(MessageListener listener) {
+		for(int i = 0; i < listeners.length; i++) {
+			if(listeners[i] == listener) return i;
+		}
+		return -1;
+	}
+}
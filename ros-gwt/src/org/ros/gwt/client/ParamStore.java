@@ -0,0 +1,346 @@
+package org.ros.gwt.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ros.gwt.client.ROS.Service;
+
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.json.client.JSONBoolean;
+import com.google.gwt.json.client.JSONNumber;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.json.client.JSONString;
+import com.google.gwt.json.client.JSONValue;
+
+/**
+ * Cache of ROS params, backed by the /rosapi/get_param and
+ * /rosapi/set_param services.
+ *
+ * Values are parsed once, when received, and kept for a TTL. Many
+ * params can be fetched at once: the calls are sent together, without
+ * waiting for each other. Concurrent gets of the same param share one
+ * call. Values written with {@link #set} are cached right away, and
+ * dropped from the cache if the write fails.
+ *
+ * Callbacks are always called asynchronously, also on a cache hit, and
+ * each one receives its own copy of the value, so that it can't alter
+ * what other callers get.
+ *
+ * Params missing on the parameter server have a {@link com.google.gwt.json.client.JSONNull} value.
+ *
+ * An instance of this class can be obtained with {@link ROS#getParamStore()}.
+ *
+ * @author Federico Ferri
+ *
+ */
+public class ParamStore {
+	private static class Entry {
+		/**
+		 * The value, serialized, so that each caller gets a copy.
+		 */
+		public String value;
+		public double expires;
+		public List<Callback<JSONValue, ServiceCallException>> waiters = new ArrayList<Callback<JSONValue, ServiceCallException>>();
+
+		public boolean isInFlight() {
+			return waiters != null;
+		}
+	}
+
+	private final Service getParamService;
+	private final Service setParamService;
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private int ttl = 30000;
+
+	protected ParamStore(ROS ros) {
+		getParamService = ros.newService("/rosapi/get_param", "rosapi/GetParam");
+		setParamService = ros.newService("/rosapi/set_param", "rosapi/SetParam");
+	}
+
+	/**
+	 * @param ttl Time to live of the cached values in milliseconds.
+	 */
+	public void setTTL(int ttl) {
+		this.ttl = ttl;
+	}
+
+	public int getTTL() {
+		return ttl;
+	}
+
+	/**
+	 * Drop the cached value of a param.
+	 *
+	 * @param name The param name.
+	 */
+	public void invalidate(String name) {
+		Entry entry = entries.get(name);
+		if(entry != null && !entry.isInFlight())
+			entries.remove(name);
+	}
+
+	/**
+	 * Drop all the cached values. Gets in flight are not affected.
+	 */
+	public void invalidate() {
+		for(Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+			if(!i.next().isInFlight())
+				i.remove();
+		}
+	}
+
+	/**
+	 * Get the cached value of a param, without making any call.
+	 *
+	 * @param name The param name.
+	 * @return A copy of the value, or null if not cached.
+	 */
+	public JSONValue getCached(String name) {
+		Entry entry = entries.get(name);
+		if(entry == null || entry.isInFlight() || entry.expires <= Duration.currentTimeMillis())
+			return null;
+		return copy(entry.value);
+	}
+
+	/**
+	 * Get the value of a param.
+	 *
+	 * @param name The param name.
+	 * @param callback Async result callback.
+	 */
+	public void get(final String name, final Callback<JSONValue, ServiceCallException> callback) {
+		Entry entry = entries.get(name);
+		if(entry != null && !entry.isInFlight() && entry.expires <= Duration.currentTimeMillis()) {
+			entries.remove(name);
+			entry = null;
+		}
+		if(entry != null) {
+			if(entry.isInFlight()) {
+				entry.waiters.add(callback);
+			} else {
+				final String value = entry.value;
+				Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+					public void execute() {
+						callback.onSuccess(copy(value));
+					}
+				});
+			}
+			return;
+		}
+		final Entry e = new Entry();
+		e.waiters.add(callback);
+		entries.put(name, e);
+		JSONObject args = new JSONObject();
+		args.put("name", new JSONString(name));
+		args.put("default", new JSONString(""));
+		getParamService.call(args, new Callback<JSONObject, ServiceCallException>() {
+			public void onSuccess(JSONObject result) {
+				JSONValue v = result.get("value");
+				JSONString s = v == null ? null : v.isString();
+				complete(name, e, parseValue(s == null ? "null" : s.stringValue()));
+			}
+
+			public void onFailure(ServiceCallException reason) {
+				if(!e.isInFlight()) return;
+				List<Callback<JSONValue, ServiceCallException>> waiters = e.waiters;
+				e.waiters = null;
+				if(entries.get(name) == e)
+					entries.remove(name);
+				for(Callback<JSONValue, ServiceCallException> waiter : waiters)
+					waiter.onFailure(reason);
+			}
+		});
+	}
+
+	/**
+	 * Get the values of many params. The calls are all sent at once.
+	 *
+	 * @param names The param names.
+	 * @param callback Async result callback, receiving the values keyed
+	 *        by param name, or the first failure.
+	 */
+	public void get(Collection<String> names, final Callback<Map<String, JSONValue>, ServiceCallException> callback) {
+		final Map<String, JSONValue> values = new LinkedHashMap<String, JSONValue>();
+		final int[] remaining = {names.size()};
+		final boolean[] failed = {false};
+		if(remaining[0] == 0) {
+			Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+				public void execute() {
+					callback.onSuccess(values);
+				}
+			});
+			return;
+		}
+		for(final String name : names) {
+			values.put(name, null);
+			get(name, new Callback<JSONValue, ServiceCallException>() {
+				public void onSuccess(JSONValue value) {
+					if(failed[0]) return;
+					values.put(name, value);
+					if(--remaining[0] == 0)
+						callback.onSuccess(values);
+				}
+
+				public void onFailure(ServiceCallException reason) {
+					if(failed[0]) return;
+					failed[0] = true;
+					callback.onFailure(reason);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Get the value of a string param.
+	 *
+	 * @param name The param name.
+	 * @param callback Async result callback (null if the value is not a string).
+	 */
+	public void getString(String name, final Callback<String, ServiceCallException> callback) {
+		get(name, new Callback<JSONValue, ServiceCallException>() {
+			public void onSuccess(JSONValue value) {
+				JSONString s = value.isString();
+				callback.onSuccess(s == null ? null : s.stringValue());
+			}
+
+			public void onFailure(ServiceCallException reason) {
+				callback.onFailure(reason);
+			}
+		});
+	}
+
+	/**
+	 * Get the value of a numeric param.
+	 *
+	 * @param name The param name.
+	 * @param callback Async result callback (null if the value is not a number).
+	 */
+	public void getNumber(String name, final Callback<Double, ServiceCallException> callback) {
+		get(name, new Callback<JSONValue, ServiceCallException>() {
+			public void onSuccess(JSONValue value) {
+				JSONNumber n = value.isNumber();
+				callback.onSuccess(n == null ? null : n.doubleValue());
+			}
+
+			public void onFailure(ServiceCallException reason) {
+				callback.onFailure(reason);
+			}
+		});
+	}
+
+	/**
+	 * Get the value of a boolean param.
+	 *
+	 * @param name The param name.
+	 * @param callback Async result callback (null if the value is not a boolean).
+	 */
+	public void getBoolean(String name, final Callback<Boolean, ServiceCallException> callback) {
+		get(name, new Callback<JSONValue, ServiceCallException>() {
+			public void onSuccess(JSONValue value) {
+				JSONBoolean b = value.isBoolean();
+				callback.onSuccess(b == null ? null : b.booleanValue());
+			}
+
+			public void onFailure(ServiceCallException reason) {
+				callback.onFailure(reason);
+			}
+		});
+	}
+
+	/**
+	 * Set the value of a param. The cached value is updated right away,
+	 * and dropped if the call fails.
+	 *
+	 * @param name The param name.
+	 * @param value The value.
+	 * @param callback Async result callback (may be null).
+	 */
+	public void set(final String name, JSONValue value, final Callback<Void, ServiceCallException> callback) {
+		Entry entry = entries.get(name);
+		if(entry != null && entry.isInFlight()) {
+			// the get in flight may return the old value: answer it with the new one
+			complete(name, entry, copy(value.toString()));
+		} else {
+			entry = new Entry();
+			entry.waiters = null;
+			entry.value = value.toString();
+			entry.expires = Duration.currentTimeMillis() + ttl;
+			entries.put(name, entry);
+		}
+		final Entry written = entry;
+		JSONObject args = new JSONObject();
+		args.put("name", new JSONString(name));
+		args.put("value", new JSONString(value.toString()));
+		setParamService.call(args, new Callback<JSONObject, ServiceCallException>() {
+			public void onSuccess(JSONObject result) {
+				if(callback != null)
+					callback.onSuccess(null);
+			}
+
+			public void onFailure(ServiceCallException reason) {
+				// unless overwritten since, the cached value is not the actual one:
+				if(entries.get(name) == written)
+					entries.remove(name);
+				if(callback != null)
+					callback.onFailure(reason);
+				else
+					System.out.println("Failed to set param: " + reason.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Set the value of a string param.
+	 *
+	 * @param name The param name.
+	 * @param value The value.
+	 * @param callback Async result callback (may be null).
+	 */
+	public void set(String name, String value, Callback<Void, ServiceCallException> callback) {
+		set(name, new JSONString(value), callback);
+	}
+
+	public void set(String name, double value, Callback<Void, ServiceCallException> callback) {
+		set(name, new JSONNumber(value), callback);
+	}
+
+	public void set(String name, boolean value, Callback<Void, ServiceCallException> callback) {
+		set(name, JSONBoolean.getInstance(value), callback);
+	}
+
+	private void complete(String name, Entry e, JSONValue value) {
+		if(!e.isInFlight()) return;
+		List<Callback<JSONValue, ServiceCallException>> waiters = e.waiters;
+		e.waiters = null;
+		e.value = value.toString();
+		e.expires = Duration.currentTimeMillis() + ttl;
+		// the first caller gets the value itself, the others a copy:
+		for(int i = 0; i < waiters.size(); i++)
+			waiters.get(i).onSuccess(i == 0 ? value : copy(e.value));
+	}
+
+	private static JSONValue copy(String value) {
+		return JSONParser.parseStrict(value);
+	}
+
+	/**
+	 * Parse the (JSON encoded) value of a param, as sent by rosapi.
+	 */
+	static JSONValue parseValue(String json) {
+		try {
+			return JSONParser.parseStrict(json);
+		} catch(RuntimeException e) {
+			return new JSONString(json);
+		}
+	}
+}
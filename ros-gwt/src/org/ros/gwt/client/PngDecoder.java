@@ -0,0 +1,114 @@
+package org.ros.gwt.client;
+
+import java.util.LinkedList;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+/**
+ * Decoder of png ops (frames sent by rosbridge with compression="png").
+ *
+ * rosbridge packs the text of the frame into the RGB channels of a PNG
+ * image, padding it with newlines. The image is decoded by the browser,
+ * drawn on a canvas, and the RGB bytes are read back in bulk and turned
+ * into a string with a single native decode.
+ *
+ * Images are decoded one at a time, so frames are delivered in order,
+ * and the same image element and canvas are reused for every frame.
+ *
+ * @author Federico Ferri
+ *
+ */
+class PngDecoder {
+	private final ROS ros;
+
+	private final LinkedList<String> queue = new LinkedList<String>();
+	private boolean decoding = false;
+
+	/**
+	 * Reused image element, canvas and 2d context.
+	 */
+	private JavaScriptObject image;
+	private JavaScriptObject canvas;
+	private JavaScriptObject context;
+
+	public PngDecoder(ROS ros) {
+		this.ros = ros;
+	}
+
+	/**
+	 * Decode a png frame, and deliver the decoded frame to
+	 * {@link ROS#onMessage(String)}.
+	 *
+	 * @param base64data The data of the png op.
+	 */
+	public void decode(String base64data) {
+		queue.addLast(base64data);
+		if(!decoding)
+			next();
+	}
+
+	private void next() {
+		if(queue.isEmpty()) {
+			decoding = false;
+			return;
+		}
+		decoding = true;
+		if(image == null)
+			init();
+		load(queue.removeFirst());
+	}
+
+	private void onDecoded(String frame) {
+		try {
+			if(frame != null)
+				ros.onMessage(frame);
+		} finally {
+			next();
+		}
+	}
+
+	private native void init() /*-{
+		var self = this;
+		var image = new Image();
+		var canvas = $doc.createElement('canvas');
+		image.onload = $entry(function() {
+			self.@org.ros.gwt.client.PngDecoder::onDecoded(Ljava/lang/String;)(self.@org.ros.gwt.client.PngDecoder::readPixels()());
+		});
+		image.onerror = $entry(function() {
+			self.@org.ros.gwt.client.PngDecoder::onDecoded(Ljava/lang/String;)(null);
+		});
+		this.@org.ros.gwt.client.PngDecoder::image = image;
+		this.@org.ros.gwt.client.PngDecoder::canvas = canvas;
+		this.@org.ros.gwt.client.PngDecoder::context = canvas.getContext('2d');
+	}-*/;
+
+	private native void load(String base64data) /*-{
+		this.@org.ros.gwt.client.PngDecoder::image.src = 'data:image/png;base64,' + base64data;
+	}-*/;
+
+	/**
+	 * Draw the loaded image, and decode its RGB bytes (skipping alpha).
+	 */
+	private native String readPixels() /*-{
+		var image = this.@org.ros.gwt.client.PngDecoder::image;
+		var canvas = this.@org.ros.gwt.client.PngDecoder::canvas;
+		var context = this.@org.ros.gwt.client.PngDecoder::context;
+		var width = image.naturalWidth, height = image.naturalHeight;
+		if(canvas.width < width) canvas.width = width;
+		if(canvas.height < height) canvas.height = height;
+		context.drawImage(image, 0, 0);
+		var rgba = context.getImageData(0, 0, width, height).data;
+		var rgb = new Uint8Array(width * height * 3);
+		for(var i = 0, j = 0; i < rgba.length; i += 4, j += 3) {
+			rgb[j] = rgba[i];
+			rgb[j + 1] = rgba[i + 1];
+			rgb[j + 2] = rgba[i + 2];
+		}
+		if(typeof $wnd.TextDecoder === 'function')
+			return new $wnd.TextDecoder('utf-8').decode(rgb);
+		var chunks = [];
+		for(var k = 0; k < rgb.length; k += 8192)
+			chunks.push(String.fromCharCode.apply(null, rgb.subarray(k, k + 8192)));
+		return chunks.join('');
+	}-*/;
+}
@@ -2,26 +2,24 @@ package org.ros.gwt.client;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import com.google.gwt.canvas.client.Canvas;
-import com.google.gwt.canvas.dom.client.CanvasPixelArray;
-import com.google.gwt.canvas.dom.client.Context2d;
-import com.google.gwt.canvas.dom.client.ImageData;
+import org.ros.gwt.client.msg_core.JSONWriter;
+import org.ros.gwt.client.msg_core.Message;
+import org.ros.gwt.client.msg_core.MessageFactory;
+
 import com.google.gwt.core.client.Callback;
-import com.google.gwt.dom.client.ImageElement;
-import com.google.gwt.event.dom.client.LoadEvent;
-import com.google.gwt.event.dom.client.LoadHandler;
+import com.google.gwt.core.client.Duration;
 import com.google.gwt.json.client.JSONArray;
+import com.google.gwt.json.client.JSONNumber;
 import com.google.gwt.json.client.JSONObject;
 import com.google.gwt.json.client.JSONParser;
 import com.google.gwt.json.client.JSONString;
 import com.google.gwt.json.client.JSONValue;
-
-import de.csenk.gwt.ws.client.WebSocket;
-import de.csenk.gwt.ws.client.WebSocketCallback;
-import de.csenk.gwt.ws.client.js.JavaScriptWebSocketFactory;
+import com.google.gwt.user.client.Timer;
 
 /**
  * {@link ROS} class encapsulate the stateful communication to rosbridge.
@@ -31,9 +29,71 @@ import de.csenk.gwt.ws.client.js.JavaScriptWebSocketFactory;
  */
 public class ROS {
 	/**
-	 * HTML5 {@link WebSocket} communication with rosbridge.
+	 * HTML5 WebSocket communication with rosbridge, possibly
+	 * running in a Web Worker.
+	 */
+	private Transport transport;
+	
+	/**
+	 * Url of rosbridge, kept for reconnecting.
+	 */
+	private final String url;
+	
+	private final ConnectionStateListener connectionListener;
+	
+	/**
+	 * Receive and parse frames in a Web Worker, see {@link #ROS(String, ConnectionStateListener, boolean)}.
+	 */
+	private final boolean parseInWorker;
+	
+	/**
+	 * Connection state. Callbacks of sockets replaced by a reconnect
+	 * are recognized by their (stale) generation, and ignored.
+	 */
+	private boolean connected = false;
+	private boolean closedByUser = false;
+	private boolean autoReconnect = true;
+	private int connectionGeneration = 0;
+	private int reconnectCount = 0;
+	
+	/**
+	 * Reconnect backoff: the delay starts small, so that a short network
+	 * blip is recovered quickly, and doubles at each failed attempt.
+	 */
+	private static final int INITIAL_RECONNECT_DELAY = 100;
+	private static final int MAX_RECONNECT_DELAY = 10000;
+	private int reconnectDelay = INITIAL_RECONNECT_DELAY;
+	private Timer reconnectTimer;
+	
+	/**
+	 * Messages sent with {@link #send(String)} while disconnected,
+	 * delivered in order on (re)connect. When full, the oldest messages
+	 * are dropped.
+	 * 
+	 * Subscriptions, advertisements and service calls are not queued:
+	 * they are tracked as state, and replayed on (re)connect. Topic
+	 * messages are not queued either, as a burst of stale messages
+	 * (e.g. velocity commands) is worse than none.
+	 */
+	private LinkedList<String> sendQueue = new LinkedList<String>();
+	private int sendQueueLimit = 1000;
+	private int droppedSends = 0;
+	
+	/**
+	 * Latest message published while disconnected, keyed by topic name,
+	 * for the topics that opted in with
+	 * {@link Topic#setKeepLatestWhileDisconnected}.
+	 */
+	private Map<String, String> latestPublishes = new LinkedHashMap<String, String>();
+	
+	/**
+	 * State replayed on (re)connect: subscribed and advertised topics,
+	 * keyed by topic name. For subscriptions, the value is the handle
+	 * whose options have been sent to rosbridge. Service calls not yet
+	 * sent are sent as well.
 	 */
-	private WebSocket socket;
+	private Map<String, Topic> subscriptions = new LinkedHashMap<String, Topic>();
+	private Map<String, Topic> advertisements = new LinkedHashMap<String, Topic>();
 	
 	/**
 	 * Generator of uniquely identified messages. This UID is used for
@@ -50,101 +110,407 @@ public class ROS {
 	private final UIDGenerator uidGenerator = new UIDGenerator();
 	
 	/**
-	 * Map of listeners keyed by op/UID.
+	 * Decoder of frames sent with compression="png".
+	 */
+	private final PngDecoder pngDecoder = new PngDecoder(this);
+	
+	/**
+	 * Reassembler of fragmented frames.
 	 */
-	private Map<String, List<MessageListener>> messageListeners = new HashMap<String, List<MessageListener>>();
+	private final FragmentAssembler fragmentAssembler = new FragmentAssembler(this);
+	
+	/**
+	 * Cache of the rosapi introspection calls.
+	 */
+	private final ServiceCache rosapiCache = new ServiceCache();
+	
+	/**
+	 * Cache of params, created on first use.
+	 */
+	private ParamStore paramStore;
+	
+	/**
+	 * Interned handles, keyed by name, see {@link #newTopic}, {@link #newService}
+	 * and {@link #newParam}. Typed topics are interned apart from untyped ones.
+	 */
+	private Map<String, Topic> topicHandles = new HashMap<String, Topic>();
+	private Map<String, TypedTopic<?>> typedTopicHandles = new HashMap<String, TypedTopic<?>>();
+	private Map<String, Service> serviceHandles = new HashMap<String, Service>();
+	private Map<String, Param> paramHandles = new HashMap<String, Param>();
+	
+	/**
+	 * Listeners of protocol ops, keyed by op. Slots are never removed,
+	 * so references to them stay valid.
+	 */
+	private Map<String, ListenerSlot> opListeners = new HashMap<String, ListenerSlot>();
+	
+	/**
+	 * Listeners of topic messages, keyed by topic name. {@link Topic}s
+	 * keep a direct reference to their slot.
+	 */
+	private Map<String, TopicSlot> topicListeners = new HashMap<String, TopicSlot>();
+	
+	/**
+	 * Last topic resolved by {@link #resolveSlot} and its slot (possibly
+	 * null), as consecutive frames are usually of the same topic.
+	 */
+	private String resolvedTopic;
+	private TopicSlot resolvedSlot;
+	
+	/**
+	 * Service calls in flight, keyed by call UID, and service calls
+	 * waiting for a free slot (see {@link #setMaxConcurrentCalls}).
+	 */
+	private Map<String, ServiceCall> pendingCalls = new LinkedHashMap<String, ServiceCall>();
+	private LinkedList<ServiceCall> queuedCalls = new LinkedList<ServiceCall>();
+	private int maxConcurrentCalls = 16;
+	private int serviceCallTimeout = 30000;
+	
+	/**
+	 * Extra listeners of the ops handled by {@link ROS} itself,
+	 * cached to skip the op table lookup.
+	 */
+	private final ListenerSlot publishOpListeners = getOpSlot("publish");
+	private final ListenerSlot serviceResponseOpListeners = getOpSlot("service_response");
+	
+	/**
+	 * Typed decoders keyed by topic name, so that each incoming message
+	 * is decoded once, however many {@link TypedMessageListener}s it has.
+	 */
+	private Map<String, TypedDispatcher<?>> typedDispatchers = new HashMap<String, TypedDispatcher<?>>();
 
-	private static final boolean PRINT_SOCKET_DATA = true;
+	/**
+	 * Frame counters, see {@link #getReceivedFrameCount()} and {@link #getSkippedFrameCount()}.
+	 */
+	private int receivedFrames = 0;
+	private int skippedFrames = 0;
+
+	private static final boolean PRINT_SOCKET_DATA = false;
+	
+	/**
+	 * Coalescing mode of {@link Topic#setCoalescing}: deliver every message.
+	 */
+	public static final int NO_COALESCING = -1;
+	
+	/**
+	 * Coalescing mode of {@link Topic#setCoalescing}: deliver the latest
+	 * message once per animation frame.
+	 */
+	public static final int COALESCE_ANIMATION_FRAME = 0;
 	
 	/**
 	 * Construct a {@link ROS} object for communicating with the rosbridge.
 	 * 
-	 * @param url {@link WebSocket} url to rosbridge.
+	 * @param url WebSocket url to rosbridge.
 	 * @param listener {@link ConnectionStateListener} that reports connection state changes.
 	 */
 	public ROS(String url, final ConnectionStateListener listener) {
+		this(url, listener, false);
+	}
+	
+	/**
+	 * Construct a {@link ROS} object for communicating with the rosbridge.
+	 * 
+	 * With parseInWorker, the WebSocket is owned by a dedicated
+	 * Web Worker, which also parses the incoming frames, keeping the UI
+	 * responsive while big messages are received. Listeners are still
+	 * called on the main thread. If the browser does not support
+	 * workers, frames are received on the main thread.
+	 * 
+	 * @param url WebSocket url to rosbridge.
+	 * @param listener {@link ConnectionStateListener} that reports connection state changes.
+	 * @param parseInWorker Receive and parse frames in a Web Worker.
+	 */
+	public ROS(String url, final ConnectionStateListener listener, boolean parseInWorker) {
 		addMessageListener("png", new MessageListener() {
 			public void onMessage(JSONObject message) {
 				JSONString base64data = message.get("data").isString();
-				if(base64data != null) {
-					final com.google.gwt.user.client.ui.Image image = new com.google.gwt.user.client.ui.Image();
-					image.addLoadHandler(new LoadHandler() {
-						public void onLoad(LoadEvent event) {
-							Canvas canvas = Canvas.createIfSupported();
-							Context2d context = canvas.getContext2d();
-							context.drawImage(ImageElement.as(image.getElement()), 0, 0);
-							ImageData imageData = context.getImageData(0, 0, image.getWidth(), image.getHeight());
-							CanvasPixelArray rawData = imageData.getData();
-							StringBuffer jsonData = new StringBuffer();
-							for(int i = 0; i < rawData.getLength(); i += 1) {
-								if(rawData.get(i) > 0) {
-									jsonData.append(String.valueOf(rawData.get(i)));
-								}
-							}
-							ROS.this.onMessage(jsonData.toString());
-						}
-					});
-					image.setUrl("data:image/png;base64," + base64data.stringValue());
-				}
+				if(base64data != null)
+					pngDecoder.decode(base64data.stringValue());
 			}
 		});
-		addMessageListener("publish", new MessageListener() {
+		addMessageListener("fragment", new MessageListener() {
 			public void onMessage(JSONObject message) {
-				JSONString topic = message.get("topic").isString();
-				JSONObject msg = message.get("msg").isObject();
-				if(topic != null)
-					callListeners(topic.stringValue(), msg);
-			}
-		});
-		addMessageListener("service_response", new MessageListener() {
-			public void onMessage(JSONObject message) {
-				JSONString id = message.get("id").isString();
-				JSONObject values = message.get("values").isObject();
-				if(id != null)
-					callListeners(id.stringValue(), values);
+				fragmentAssembler.add(message);
 			}
 		});
 		
-		JavaScriptWebSocketFactory jsWebSocketFactory = new JavaScriptWebSocketFactory();
-		socket = jsWebSocketFactory.createWebSocket(url, new WebSocketCallback() {
-			public void onOpen(WebSocket webSocket) {
-				listener.onOpen();
+		this.url = url;
+		this.connectionListener = listener;
+		this.parseInWorker = parseInWorker;
+		connect();
+	}
+	
+	/**
+	 * Open a new WebSocket to rosbridge.
+	 */
+	private void connect() {
+		final int generation = ++connectionGeneration;
+		Transport.Listener transportListener = new Transport.Listener() {
+			public void onOpen() {
+				if(generation != connectionGeneration) return;
+				ROS.this.onOpen();
 			}
 
-			public void onMessage(WebSocket webSocket, String message) {
+			public void onMessage(String message) {
+				if(generation != connectionGeneration) return;
 				ROS.this.onMessage(message);
 			}
 
-			public void onError(WebSocket webSocket) {
-				listener.onError();
+			public void onMessage(JSONObject message) {
+				if(generation != connectionGeneration) return;
+				ROS.this.onParsedMessage(message);
 			}
 
-			public void onClose(WebSocket webSocket) {
-				listener.onClose();
+			public void onError() {
+				if(generation != connectionGeneration) return;
+				connectionListener.onError();
 			}
-		});
+
+			public void onClose() {
+				if(generation != connectionGeneration) return;
+				ROS.this.onClose();
+			}
+		};
+		if(parseInWorker && WorkerTransport.isSupported())
+			transport = new WorkerTransport(url, transportListener);
+		else
+			transport = new WebSocketTransport(url, transportListener);
+	}
+	
+	/**
+	 * Handler for the opening of the WebSocket: replay the tracked
+	 * state, then deliver the topic messages kept and the messages
+	 * queued while disconnected.
+	 */
+	protected void onOpen() {
+		connected = true;
+		reconnectDelay = INITIAL_RECONNECT_DELAY;
+		// the graph and the params may have changed while disconnected:
+		rosapiCache.invalidate();
+		if(paramStore != null)
+			paramStore.invalidate();
+		replayState();
+		List<String> publishes = new ArrayList<String>(latestPublishes.values());
+		latestPublishes.clear();
+		for(String op : publishes)
+			transmit(op);
+		while(connected && !sendQueue.isEmpty())
+			transmit(sendQueue.removeFirst());
+		connectionListener.onOpen();
+	}
+	
+	/**
+	 * Handler for the closing of the WebSocket: fail the service calls
+	 * in flight, and schedule a reconnect, unless closed with
+	 * {@link #disconnect()}.
+	 */
+	protected void onClose() {
+		connected = false;
+		fragmentAssembler.clear();
+		// a call in flight may or may not have been executed, so it
+		// can't be sent again: only calls never sent are replayed
+		List<ServiceCall> calls = new ArrayList<ServiceCall>();
+		for(ServiceCall call : pendingCalls.values()) {
+			if(call.transmitted) calls.add(call);
+		}
+		for(ServiceCall call : calls)
+			call.fail(ServiceCallException.Reason.DISCONNECTED, "connection lost");
+		connectionListener.onClose();
+		if(!closedByUser && autoReconnect)
+			scheduleReconnect();
+	}
+	
+	private void scheduleReconnect() {
+		if(reconnectTimer == null) {
+			reconnectTimer = new Timer() {
+				@Override
+				public void run() {
+					reconnectCount++;
+					connect();
+				}
+			};
+		}
+		reconnectTimer.schedule(reconnectDelay);
+		reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+	}
+	
+	/**
+	 * Send the subscribe and advertise ops needed to restore the state
+	 * of a new connection, and the service calls made while
+	 * disconnected, in one go, before any queued message.
+	 */
+	private void replayState() {
+		List<String> batch = new ArrayList<String>(advertisements.size() + subscriptions.size() + pendingCalls.size());
+		for(Topic topic : advertisements.values())
+			batch.add(topic.advertiseOp().toString());
+		for(Topic topic : subscriptions.values())
+			batch.add(topic.subscribeOp().toString());
+		for(ServiceCall call : pendingCalls.values()) {
+			if(!call.transmitted) {
+				call.transmitted = true;
+				batch.add(call.op);
+			}
+		}
+		for(String op : batch)
+			transmit(op);
 	}
 
 	/**
 	 * Closes the connection with the rosbridge.
 	 */
 	public void disconnect() {
-		socket.close();
+		closedByUser = true;
+		connected = false;
+		if(reconnectTimer != null)
+			reconnectTimer.cancel();
+		transport.close();
+		List<ServiceCall> calls = new ArrayList<ServiceCall>(pendingCalls.values());
+		calls.addAll(queuedCalls);
+		for(ServiceCall call : calls)
+			call.fail(ServiceCallException.Reason.DISCONNECTED, "disconnected");
+	}
+	
+	/**
+	 * @return true if the WebSocket to rosbridge is open.
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+	
+	/**
+	 * Enable or disable reconnecting (with exponential backoff) when
+	 * the connection drops. Enabled by default.
+	 */
+	public void setAutoReconnect(boolean autoReconnect) {
+		this.autoReconnect = autoReconnect;
+		if(!autoReconnect && reconnectTimer != null)
+			reconnectTimer.cancel();
+	}
+	
+	public boolean isAutoReconnect() {
+		return autoReconnect;
+	}
+	
+	/**
+	 * @return The number of reconnection attempts made.
+	 */
+	public int getReconnectCount() {
+		return reconnectCount;
+	}
+	
+	/**
+	 * Set the maximum number of messages queued with {@link #send(String)}
+	 * while disconnected.
+	 * 
+	 * @param sendQueueLimit Maximum queue length.
+	 */
+	public void setSendQueueLimit(int sendQueueLimit) {
+		this.sendQueueLimit = sendQueueLimit;
+		trimSendQueue();
+	}
+	
+	public int getSendQueueLimit() {
+		return sendQueueLimit;
+	}
+	
+	/**
+	 * @return The number of messages waiting for the connection.
+	 */
+	public int getQueuedMessageCount() {
+		return sendQueue.size();
+	}
+	
+	/**
+	 * @return The number of queued messages dropped because the queue was full.
+	 */
+	public int getDroppedSendCount() {
+		return droppedSends;
+	}
+	
+	private void trimSendQueue() {
+		while(sendQueue.size() > Math.max(0, sendQueueLimit)) {
+			sendQueue.removeFirst();
+			droppedSends++;
+		}
+	}
+
+	/**
+	 * Set how long the fragments of an incomplete message are kept
+	 * (see {@link Topic#setFragmentSize}).
+	 * 
+	 * @param timeout Timeout in milliseconds.
+	 */
+	public void setFragmentTimeout(int timeout) {
+		fragmentAssembler.setTimeout(timeout);
+	}
+	
+	public int getFragmentTimeout() {
+		return fragmentAssembler.getTimeout();
+	}
+	
+	/**
+	 * Set the maximum size of the fragments buffered for incomplete
+	 * messages. When exceeded, the oldest messages are dropped.
+	 * 
+	 * @param memoryLimit Limit in characters.
+	 */
+	public void setFragmentMemoryLimit(int memoryLimit) {
+		fragmentAssembler.setMemoryLimit(memoryLimit);
+	}
+	
+	public int getFragmentMemoryLimit() {
+		return fragmentAssembler.getMemoryLimit();
+	}
+	
+	/**
+	 * @return The number of fragmented messages dropped incomplete,
+	 *         because of the timeout or of the memory limit.
+	 */
+	public int getDroppedFragmentedMessageCount() {
+		return fragmentAssembler.getDroppedMessageCount();
 	}
 
 	/**
-	 * Send a raw ({@link String}) message over the {@link WebSocket}.
+	 * Send a raw ({@link String}) message over the WebSocket.
+	 * 
+	 * If not connected, the message is queued (see {@link #setSendQueueLimit}).
+	 * Topic messages don't go through here, and are not queued.
 	 * 
 	 * @param rawMessage Raw message string to send.
 	 */
 	protected void send(String rawMessage) {
+		if(connected) {
+			transmit(rawMessage);
+		} else {
+			sendQueue.addLast(rawMessage);
+			trimSendQueue();
+		}
+	}
+	
+	/**
+	 * Send an op that is part of the tracked state. If not connected,
+	 * it is not queued, as it will be replayed on (re)connect.
+	 * 
+	 * @param rawMessage Raw message string to send.
+	 */
+	protected void sendState(String rawMessage) {
+		if(connected)
+			transmit(rawMessage);
+	}
+	
+	protected void sendState(JSONObject message) {
+		sendState(message.toString());
+	}
+	
+	private void transmit(String rawMessage) {
 		if(PRINT_SOCKET_DATA)
 			System.out.println("ROS >> " + rawMessage);
-		socket.send(rawMessage);
+		transport.send(rawMessage);
 	}
 	
 	/**
-	 * Send a JS Object over the {@link WebSocket}.
+	 * Send a JS Object over the WebSocket.
 	 * 
 	 * @param message Message object to send.
 	 */
@@ -152,63 +518,141 @@ public class ROS {
 		send(message.toString());
 	}
 
+	private ListenerSlot getOpSlot(String op) {
+		ListenerSlot slot = opListeners.get(op);
+		if(slot == null)
+			opListeners.put(op, slot = new ListenerSlot());
+		return slot;
+	}
+
 	/**
-	 * Register a listener for a certain op (or UID).
+	 * Register a listener for a certain op.
 	 * Multiple listener will be called sequentially.
 	 * 
-	 * @param op The op (or UID) to register handler for.
+	 * Topic messages and service responses are delivered to
+	 * {@link Topic} and {@link Service} listeners instead.
+	 * <p>
+	 * <b>Breaking change:</b> listeners used to be keyed by op, topic
+	 * name and service call id alike, so that
+	 * <code>addMessageListener("/topic", listener)</code> received the
+	 * messages of /topic. It no longer does: use
+	 * {@link Topic#subscribe(MessageListener)} instead.
+	 * 
+	 * @param op The op to register handler for.
 	 * @param listener The listener callback.
 	 */
 	public void addMessageListener(String op, MessageListener listener) {
-		List<MessageListener> l = messageListeners.get(op);
-		if(l == null)
-			l = new ArrayList<MessageListener>();
-		if(!l.contains(listener))
-			l.add(listener);
-		messageListeners.put(op, l);
+		getOpSlot(op).add(listener);
 	}
 
 	/**
-	 * Deregister a specific listener for a certain op (or UID).
+	 * Deregister a specific listener for a certain op.
 	 * 
-	 * @param op The op (or UID) where the listener belongs to.
+	 * @param op The op where the listener belongs to.
 	 * @param listener The messageCallback to deregister.
 	 */
 	public void removeMessageListener(String op, MessageListener listener) {
-		List<MessageListener> l = messageListeners.get(op);
-		if(l == null)
-			return;
-		if(l.contains(listener))
-			l.remove(listener);
+		ListenerSlot slot = opListeners.get(op);
+		if(slot != null)
+			slot.remove(listener);
 	}
 
 	/**
-	 * Deregister all listeners for a certain op (or UID).
+	 * Deregister all listeners for a certain op.
 	 *  
-	 * @param op The op (or UID).
+	 * @param op The op.
 	 */
 	public void removeAllMessageListeners(String op) {
-		messageListeners.remove(op);
+		ListenerSlot slot = opListeners.get(op);
+		if(slot != null)
+			slot.clear();
 	}
 	
 	/**
-	 * Handler for raw ({@link String}) messages coming from the {@link WebSocket}.
+	 * Handler for raw ({@link String}) messages coming from the WebSocket.
 	 * 
 	 * @param rawMessage Raw message string received.
 	 */
 	protected void onMessage(String rawMessage) {
 		if(PRINT_SOCKET_DATA)
 			System.out.println("ROS << " + rawMessage);
+		receivedFrames++;
+		// peek at the envelope, and only parse frames someone listens to:
+		Envelope envelope = Envelope.scan(rawMessage);
+		TopicSlot slot = null;
+		if(envelope != null && envelope.op.equals("publish")) {
+			slot = resolveSlot(envelope.topic);
+			boolean listened = slot != null && !slot.isEmpty();
+			if(!listened && publishOpListeners.isEmpty()) {
+				skippedFrames++;
+				return;
+			}
+			if(listened && slot.isCoalescing() && publishOpListeners.isEmpty()) {
+				// parsed only if still the latest when delivered:
+				slot.offerFrame(rawMessage);
+				return;
+			}
+		} else if(envelope != null && !isWanted(envelope)) {
+			skippedFrames++;
+			return;
+		}
 		JSONValue value = JSONParser.parseStrict(rawMessage);
 		JSONObject obj;
-		if((obj = value.isObject()) != null)
-			ROS.this.onMessage(obj);
-		else
+		if((obj = value.isObject()) == null) {
 			System.out.println("Unhandled JSON message: " + value.toString());
+		} else if(slot != null) {
+			// already routed by the envelope:
+			dispatchPublish(slot, obj);
+			publishOpListeners.dispatch(obj);
+		} else {
+			ROS.this.onMessage(obj);
+		}
 	}
 	
 	/**
-	 * Handler for JS Objects coming from the {@link WebSocket}.
+	 * Handler for frames already parsed by the {@link Transport}.
+	 * 
+	 * @param message Message received.
+	 */
+	private void onParsedMessage(JSONObject message) {
+		// don't serialize the frame back to text, it's what the transport saved us:
+		if(PRINT_SOCKET_DATA)
+			System.out.println("ROS << {op: " + message.get("op") + ", topic: " + message.get("topic") + ", ...}");
+		receivedFrames++;
+		onMessage(message);
+	}
+	
+	/**
+	 * Check whether a frame has any listener.
+	 * 
+	 * @param envelope The envelope of the frame.
+	 * @return false if the frame can be dropped without parsing it.
+	 */
+	private boolean isWanted(Envelope envelope) {
+		if(envelope.op.equals("service_response")) {
+			if(!serviceResponseOpListeners.isEmpty()) return true;
+			return pendingCalls.containsKey(envelope.id);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return The number of frames received from rosbridge.
+	 */
+	public int getReceivedFrameCount() {
+		return receivedFrames;
+	}
+	
+	/**
+	 * @return The number of frames dropped without being parsed,
+	 *         because nobody was listening to them.
+	 */
+	public int getSkippedFrameCount() {
+		return skippedFrames;
+	}
+	
+	/**
+	 * Handler for JS Objects coming from the WebSocket.
 	 * @param message Message received.
 	 */
 	protected void onMessage(JSONObject message) {
@@ -217,100 +661,339 @@ public class ROS {
 			return;
 		}
 		
-		JSONString op = message.get("op").isString();
-		if(op != null)
-			callListeners(op.stringValue(), message);
-		else
+		JSONValue opValue = message.get("op");
+		JSONString op = opValue == null ? null : opValue.isString();
+		if(op == null) {
 			System.out.println("onMessage(): malformed protocol message: " + message.toString());
+			return;
+		}
+		String opName = op.stringValue();
+		if(opName.equals("publish")) {
+			onPublish(message);
+			publishOpListeners.dispatch(message);
+		} else if(opName.equals("service_response")) {
+			onServiceResponse(message);
+			serviceResponseOpListeners.dispatch(message);
+		} else {
+			ListenerSlot slot = opListeners.get(opName);
+			if(slot != null)
+				slot.dispatch(message);
+		}
 	}
 	
 	/**
-	 * Call handlers for a certain op (or UID).
+	 * Deliver a topic message to the listeners of the topic.
 	 * 
-	 * @param key The op (or UID).
-	 * @param arg Object argument.
+	 * @param message The publish op.
 	 */
-	protected void callListeners(String key, JSONObject arg) {
-		List<MessageListener> listeners = messageListeners.get(key);
-		if(listeners != null) {
-			for(MessageListener listener : listeners) {
-				listener.onMessage(arg);
-			}
+	protected void onPublish(JSONObject message) {
+		JSONString topic = message.get("topic").isString();
+		if(topic == null) return;
+		TopicSlot slot = resolveSlot(topic.stringValue());
+		if(slot != null)
+			dispatchPublish(slot, message);
+	}
+	
+	/**
+	 * Look up the listener slot of a topic.
+	 * 
+	 * @param topic The topic name.
+	 * @return The slot, or null if the topic has no listeners.
+	 */
+	private TopicSlot resolveSlot(String topic) {
+		if(!topic.equals(resolvedTopic)) {
+			resolvedSlot = topicListeners.get(topic);
+			resolvedTopic = topic;
 		}
+		return resolvedSlot;
+	}
+	
+	private void dispatchPublish(TopicSlot slot, JSONObject message) {
+		if(slot.isCoalescing())
+			slot.offerMessage(message.get("msg").isObject());
+		else
+			slot.dispatch(message.get("msg").isObject());
+	}
+	
+	/**
+	 * Complete the pending call a service response belongs to.
+	 * 
+	 * @param message The service_response op.
+	 */
+	protected void onServiceResponse(JSONObject message) {
+		JSONValue idValue = message.get("id");
+		JSONString id = idValue == null ? null : idValue.isString();
+		if(id == null) return;
+		ServiceCall call = pendingCalls.get(id.stringValue());
+		if(call == null) return;
+		JSONValue result = message.get("result");
+		JSONValue values = message.get("values");
+		if(result != null && result.isBoolean() != null && !result.isBoolean().booleanValue()) {
+			// on failure, rosbridge sends the error message as values:
+			JSONString error = values == null ? null : values.isString();
+			call.fail(ServiceCallException.Reason.FAILED, error != null ? error.stringValue() : String.valueOf(values));
+		} else {
+			JSONObject obj = values == null ? null : values.isObject();
+			call.succeed(obj != null ? obj : new JSONObject());
+		}
+	}
+	
+	/**
+	 * Send queued service calls, while below the concurrency limit.
+	 */
+	private void startQueuedCalls() {
+		while(!queuedCalls.isEmpty() && (maxConcurrentCalls <= 0 || pendingCalls.size() < maxConcurrentCalls))
+			queuedCalls.removeFirst().start();
+	}
+	
+	/**
+	 * Set the maximum number of service calls in flight. Further calls
+	 * are queued, and sent as the pending ones complete.
+	 * 
+	 * @param maxConcurrentCalls Maximum number of calls (0 for no limit).
+	 */
+	public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+		this.maxConcurrentCalls = maxConcurrentCalls;
+		startQueuedCalls();
+	}
+	
+	public int getMaxConcurrentCalls() {
+		return maxConcurrentCalls;
+	}
+	
+	/**
+	 * Set the default timeout of service calls.
+	 * 
+	 * The timeout is counted from when the call is started, i.e. sent
+	 * (or, while disconnected, held until reconnection); time spent
+	 * queued behind other calls (see {@link #setMaxConcurrentCalls})
+	 * does not count.
+	 * 
+	 * @param serviceCallTimeout Timeout in milliseconds (0 for no timeout).
+	 */
+	public void setServiceCallTimeout(int serviceCallTimeout) {
+		this.serviceCallTimeout = serviceCallTimeout;
+	}
+	
+	public int getServiceCallTimeout() {
+		return serviceCallTimeout;
+	}
+	
+	/**
+	 * @return The number of service calls in flight.
+	 */
+	public int getPendingCallCount() {
+		return pendingCalls.size();
+	}
+	
+	/**
+	 * @return The number of service calls waiting to be sent.
+	 */
+	public int getQueuedCallCount() {
+		return queuedCalls.size();
+	}
+
+	/**
+	 * Call a rosapi introspection service, through the cache.
+	 * 
+	 * @param name The service name.
+	 * @param type The service type.
+	 * @param args Arguments to the service.
+	 * @param callback Async result callback.
+	 */
+	private void callRosapi(String name, String type, JSONObject args, Callback<JSONObject, ServiceCallException> callback) {
+		Service service = serviceHandles.get(name);
+		rosapiCache.call(service != null ? service : new Service(name, type), args, callback);
+	}
+	
+	/**
+	 * Set how long the responses of the rosapi introspection calls
+	 * ({@link #getTopics}, {@link #getServices}, {@link #getParams},
+	 * {@link #getTopicType}, {@link #getMessageDetails}) are cached.
+	 * Identical calls made while one is in flight always share its
+	 * response.
+	 * 
+	 * @param ttl Time to live in milliseconds (0 for no caching).
+	 */
+	public void setRosapiCacheTTL(int ttl) {
+		rosapiCache.setTTL(ttl);
+	}
+	
+	public int getRosapiCacheTTL() {
+		return rosapiCache.getTTL();
+	}
+	
+	/**
+	 * Drop the cached responses of the rosapi introspection calls.
+	 * This is done automatically on reconnect.
+	 */
+	public void invalidateRosapiCache() {
+		rosapiCache.invalidate();
+	}
+	
+	/**
+	 * @return The number of rosapi introspection calls answered from
+	 *         the cache, or by a call already in flight.
+	 */
+	public int getRosapiCacheHitCount() {
+		return rosapiCache.getHitCount();
+	}
+	
+	/**
+	 * @return The number of rosapi introspection calls that made a
+	 *         round trip to rosbridge.
+	 */
+	public int getRosapiCacheMissCount() {
+		return rosapiCache.getMissCount();
+	}
+
+	/**
+	 * @return The {@link ParamStore} of this connection.
+	 */
+	public ParamStore getParamStore() {
+		if(paramStore == null)
+			paramStore = new ParamStore(this);
+		return paramStore;
 	}
 
 	/**
 	 * Retrieve topics from rosbridge, using the /rosapi/topics service call.
 	 * 
+	 * The handles are not acquired: they may be shared with other users,
+	 * and must not be released. To use a topic, get its handle with
+	 * {@link #newTopic(String, String)}.
+	 * 
 	 * @param callback Async result callback.
 	 */
 	public void getTopics(final Callback<List<Topic>, Void> callback) {
-		Service topicsClient = new Service("/rosapi/topics", "rosapi/Topics");
-		topicsClient.callService(new JSONObject(), new MessageListener() {
-			public void onMessage(JSONObject result) {
+		callRosapi("/rosapi/topics", "rosapi/Topics", new JSONObject(), new Callback<JSONObject, ServiceCallException>() {
+			public void onSuccess(JSONObject result) {
 				List<Topic> topics = new ArrayList<Topic>();
 				JSONArray a = result.get("topics").isArray();
 				if(a != null) {
 					for(int i = 0; i < a.size(); i++) {
 						JSONString s = a.get(i).isString();
 						if(s != null)
-							topics.add(new Topic(s.stringValue(), null));
+							topics.add(lookupTopic(s.stringValue()));
 					}
 				}
 				callback.onSuccess(topics);
 			}
+
+			public void onFailure(ServiceCallException reason) {
+				callback.onFailure(null);
+			}
 		});
 	}
 	
 	/**
-	 * Retrieve topics from rosbridge, using the /rosapi/services service call.
+	 * Retrieve services from rosbridge, using the /rosapi/services service call.
+	 * 
+	 * The handles are not acquired: they may be shared with other users,
+	 * and must not be released. To use a service, get its handle with
+	 * {@link #newService(String, String)}.
 	 * 
 	 * @param callback Async result callback.
 	 */
 	public void getServices(final Callback<List<Service>, Void> callback) {
-		Service servicesClient = new Service("/rosapi/services", "rosapi/Services");
-		servicesClient.callService(new JSONObject(), new MessageListener() {
-			public void onMessage(JSONObject result) {
+		callRosapi("/rosapi/services", "rosapi/Services", new JSONObject(), new Callback<JSONObject, ServiceCallException>() {
+			public void onSuccess(JSONObject result) {
 				List<Service> services = new ArrayList<Service>();
 				JSONArray a = result.get("services").isArray();
 				if(a != null) {
 					for(int i = 0; i < a.size(); i++) {
 						JSONString s = a.get(i).isString();
 						if(s != null)
-							services.add(new Service(s.stringValue(), null));
+							services.add(lookupService(s.stringValue()));
 					}
 				}
 				callback.onSuccess(services);
 			}
+
+			public void onFailure(ServiceCallException reason) {
+				callback.onFailure(null);
+			}
 		});
 	}
 	
 	/**
 	 * Retrieve params from rosbridge, using the /rosapi/get_param_names service call.
 	 * 
+	 * The handles are not acquired: they may be shared with other users,
+	 * and must not be released. To use a param, get its handle with
+	 * {@link #newParam(String)}.
+	 * 
 	 * @param callback Async result callback.
 	 */
 	public void getParams(final Callback<List<Param>, Void> callback) {
-		Service servicesClient = new Service("/rosapi/get_param_names", "rosapi/GetParamNames");
-		servicesClient.callService(new JSONObject(), new MessageListener() {
-			public void onMessage(JSONObject result) {
+		callRosapi("/rosapi/get_param_names", "rosapi/GetParamNames", new JSONObject(), new Callback<JSONObject, ServiceCallException>() {
+			public void onSuccess(JSONObject result) {
 				List<Param> params = new ArrayList<Param>();
 				JSONArray a = result.get("names").isArray();
 				if(a != null) {
 					for(int i = 0; i < a.size(); i++) {
 						JSONString s = a.get(i).isString();
 						if(s != null)
-							params.add(new Param(s.stringValue()));
+							params.add(lookupParam(s.stringValue()));
 					}
 				}
 				callback.onSuccess(params);
 			}
+
+			public void onFailure(ServiceCallException reason) {
+				callback.onFailure(null);
+			}
+		});
+	}
+	
+	/**
+	 * Retrieve the type of a topic, using the /rosapi/topic_type service call.
+	 * 
+	 * @param topic The topic name.
+	 * @param callback Async result callback.
+	 */
+	public void getTopicType(String topic, final Callback<String, Void> callback) {
+		JSONObject args = new JSONObject();
+		args.put("topic", new JSONString(topic));
+		callRosapi("/rosapi/topic_type", "rosapi/TopicType", args, new Callback<JSONObject, ServiceCallException>() {
+			public void onSuccess(JSONObject result) {
+				JSONValue type = result.get("type");
+				JSONString s = type == null ? null : type.isString();
+				callback.onSuccess(s == null ? null : s.stringValue());
+			}
+
+			public void onFailure(ServiceCallException reason) {
+				callback.onFailure(null);
+			}
+		});
+	}
+	
+	/**
+	 * Retrieve the definition of a message type (and of the types it
+	 * contains), using the /rosapi/message_details service call.
+	 * 
+	 * @param type The message type.
+	 * @param callback Async result callback, receiving the typedefs array.
+	 */
+	public void getMessageDetails(String type, final Callback<JSONArray, Void> callback) {
+		JSONObject args = new JSONObject();
+		args.put("type", new JSONString(type));
+		callRosapi("/rosapi/message_details", "rosapi/MessageDetails", args, new Callback<JSONObject, ServiceCallException>() {
+			public void onSuccess(JSONObject result) {
+				JSONValue typedefs = result.get("typedefs");
+				JSONArray a = typedefs == null ? null : typedefs.isArray();
+				callback.onSuccess(a != null ? a : new JSONArray());
+			}
+
+			public void onFailure(ServiceCallException reason) {
+				callback.onFailure(null);
+			}
 		});
 	}
 
 	/**
 	 * {@link ConnectionStateListener} is notified about connection state
-	 * changes in the {@link WebSocket}.
+	 * changes in the WebSocket.
 	 * 
 	 * @author Federico Ferri
 	 *
@@ -327,7 +1010,8 @@ public class ROS {
 	 * {@link MessageListener} is notified when a message is received from rosbridge.
 	 * 
 	 * {@link MessageListener}s are registered/deregistered using
-	 * {@link ROS#addMessageListener} and {@link ROS#removeMessageListener}.
+	 * {@link ROS#addMessageListener} and {@link ROS#removeMessageListener}
+	 * (for ops), or with {@link Topic#subscribe} (for topic messages).
 	 * 
 	 * @author Federico Ferri
 	 *
@@ -339,37 +1023,149 @@ public class ROS {
 	public static interface ValueListener<T> {
 		public void onValue(T value);
 	}
+	
+	/**
+	 * {@link TypedMessageListener} is notified with the decoded message
+	 * when a message is received on a {@link TypedTopic}.
+	 * 
+	 * The same instance is passed to every listener of the topic,
+	 * so listeners must not modify it.
+	 * 
+	 * @author Federico Ferri
+	 *
+	 */
+	public static interface TypedMessageListener<T extends Message> {
+		public void onMessage(T message);
+	}
 
 	/**
-	 * Create a new topic object.
+	 * Get the handle of a topic.
+	 * 
+	 * Handles are interned: the same object is returned for the same
+	 * name, with its advertisement, options and subscription state,
+	 * until every user has called {@link Topic#release()}.
 	 * 
 	 * @param name The ROS topic name.
-	 * @param messageType The type of the exchanged messages.
+	 * @param messageType The type of the exchanged messages (null if unknown).
 	 * @return A {@link ROS.Topic} object.
+	 * @throws IllegalArgumentException if the topic already has a different type.
 	 */
 	public Topic newTopic(String name, String messageType) {
-		return new Topic(name, messageType);
+		checkTopicType(name, messageType);
+		Topic topic = topicHandles.get(name);
+		if(topic == null) {
+			TypedTopic<?> typed = typedTopicHandles.get(name);
+			topic = new Topic(name, messageType != null ? messageType : typed != null ? typed.getMessageType() : null);
+			topicHandles.put(name, topic);
+		} else if(topic.messageType == null) {
+			topic.messageType = messageType;
+		}
+		topic.acquire();
+		return topic;
 	}
 	
 	/**
-	 * Create a new service object.
+	 * Get the handle of a typed topic.
+	 * 
+	 * Handles are interned like with {@link #newTopic(String, String)}.
+	 * 
+	 * @param name The ROS topic name.
+	 * @param factory The factory of the exchanged messages (e.g. Twist.FACTORY).
+	 * @return A {@link ROS.TypedTopic} object.
+	 * @throws IllegalArgumentException if the topic already has a different type.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Message> TypedTopic<T> newTopic(String name, MessageFactory<T> factory) {
+		TypedTopic<T> topic = (TypedTopic<T>)typedTopicHandles.get(name);
+		if(topic == null) {
+			topic = new TypedTopic<T>(name, factory);
+			checkTopicType(name, topic.getMessageType());
+			typedTopicHandles.put(name, topic);
+			Topic untyped = topicHandles.get(name);
+			if(untyped != null && untyped.messageType == null)
+				untyped.messageType = topic.getMessageType();
+		} else {
+			checkTopicType(name, factory.newMessage().getFullTypeName());
+		}
+		topic.acquire();
+		return topic;
+	}
+	
+	private void checkTopicType(String name, String messageType) {
+		if(messageType == null) return;
+		Topic topic = topicHandles.get(name);
+		if(topic == null) topic = typedTopicHandles.get(name);
+		if(topic != null && topic.messageType != null && !topic.messageType.equals(messageType))
+			throw new IllegalArgumentException("Topic " + name + " has type " + topic.messageType + ", not " + messageType);
+	}
+	
+	/**
+	 * Get the handle of a service.
+	 * 
+	 * Handles are interned: the same object is returned for the same
+	 * name, until every user has called {@link Service#release()}.
 	 * 
 	 * @param name The ROS service name.
-	 * @param serviceType The type of the exchanged messages.
+	 * @param serviceType The type of the exchanged messages (null if unknown).
 	 * @return A {@link ROS.Service} object.
+	 * @throws IllegalArgumentException if the service already has a different type.
 	 */
 	public Service newService(String name, String serviceType) {
-		return new Service(name, serviceType);
+		Service service = serviceHandles.get(name);
+		if(service == null) {
+			service = new Service(name, serviceType);
+			serviceHandles.put(name, service);
+		} else if(service.serviceType == null) {
+			service.serviceType = serviceType;
+		} else if(serviceType != null && !service.serviceType.equals(serviceType)) {
+			throw new IllegalArgumentException("Service " + name + " has type " + service.serviceType + ", not " + serviceType);
+		}
+		service.refCount++;
+		return service;
 	}
 	
 	/**
-	 * Create a new param object.
+	 * Get the handle of a param.
+	 * 
+	 * Handles are interned: the same object is returned for the same
+	 * name, until every user has called {@link Param#release()}.
 	 * 
 	 * @param name The ROS param name.
 	 * @return A {@link ROS.Param} object.
 	 */
 	public Param newParam(String name) {
-		return new Param(name);
+		Param param = paramHandles.get(name);
+		if(param == null) {
+			param = new Param(name);
+			paramHandles.put(name, param);
+		}
+		param.refCount++;
+		return param;
+	}
+	
+	/**
+	 * @return The interned handle of a topic, or a new (not interned) one.
+	 */
+	private Topic lookupTopic(String name) {
+		Topic topic = topicHandles.get(name);
+		if(topic == null) topic = typedTopicHandles.get(name);
+		return topic != null ? topic : new Topic(name, null);
+	}
+	
+	/**
+	 * @return The interned handle of a service, or a new (not interned) one.
+	 */
+	private Service lookupService(String name) {
+		Service service = serviceHandles.get(name);
+		return service != null ? service : new Service(name, null);
+	}
+	
+	/**
+	 * @return The interned handle of a param, or a new (not interned) one.
+	 */
+	private Param lookupParam(String name) {
+		Param param = paramHandles.get(name);
+		return param != null ? param : new Param(name);
 	}
 
 	/**
@@ -377,7 +1173,8 @@ public class ROS {
 	 * 
 	 * Use this class to subscribe, unsubscribe, and publish messages to topics.
 	 * 
-	 * An instance of this class can be obtained with {@link ROS#newTopic}.
+	 * An instance of this class can be obtained with {@link ROS#newTopic},
+	 * and released with {@link #release()} when no longer used.
 	 * 
 	 * @author Federico Ferri
 	 *
@@ -387,10 +1184,73 @@ public class ROS {
 		private String messageType;
 		private boolean advertised = false;
 		private String compression = "none";
+		private int throttleRate = 0;
+		private int queueLength = 0;
+		private int fragmentSize = 0;
+		private TopicSlot slot;
+		
+		/**
+		 * Id of the subscribe op sent to rosbridge, if this is the handle
+		 * whose options are in use. Resubscribing with the same id updates
+		 * the subscription options.
+		 */
+		private String subscribeId;
+		
+		/**
+		 * {@link Subscription}s made through this handle.
+		 */
+		private List<Subscription> subscriptionHandles = new ArrayList<Subscription>();
+		
+		/**
+		 * Outgoing rate limit state, see {@link #setPublishInterval}.
+		 */
+		private int publishInterval = 0;
+		private double lastPublishTime = 0;
+		private boolean hasPendingPublish = false;
+		private JSONValue pendingJSON;
+		private Message pendingMessage;
+		private Timer publishTimer;
+		private int publishedMessages = 0;
+		private int coalescedPublishes = 0;
+		private boolean keepLatestWhileDisconnected = false;
+		private int droppedPublishes = 0;
+		
+		/**
+		 * Number of users of this (interned) handle.
+		 */
+		private int refCount = 0;
 
 		protected Topic(String name, String messageType) {
 			this.name = name;
 			this.messageType = messageType;
+			this.slot = topicListeners.get(name);
+			if(this.slot == null)
+				this.slot = new TopicSlot();
+		}
+
+		/**
+		 * Get the listener slot of this topic, registering it for
+		 * dispatch. Handles of the same topic share the same slot.
+		 */
+		protected TopicSlot getSlot() {
+			TopicSlot current = topicListeners.get(name);
+			if(current == null) {
+				topicListeners.put(name, slot);
+				resolvedTopic = null;
+			} else {
+				slot = current;
+			}
+			return slot;
+		}
+
+		/**
+		 * Stop dispatching to the listener slot of this topic, if it is empty.
+		 */
+		protected void releaseSlot() {
+			if(slot.isEmpty() && topicListeners.get(name) == slot) {
+				topicListeners.remove(name);
+				resolvedTopic = null;
+			}
 		}
 
 		public String getName() {
@@ -401,6 +1261,30 @@ public class ROS {
 			return messageType;
 		}
 
+		protected void acquire() {
+			refCount++;
+		}
+
+		/**
+		 * Release this handle. When all its users have released it, the
+		 * subscriptions made through it are cancelled, the topic is
+		 * unadvertised, and the next call to {@link ROS#newTopic} returns
+		 * a new handle.
+		 */
+		public void release() {
+			if(refCount <= 0 || --refCount > 0) return;
+			if(this instanceof TypedTopic) {
+				if(typedTopicHandles.get(name) == this)
+					typedTopicHandles.remove(name);
+			} else if(topicHandles.get(name) == this) {
+				topicHandles.remove(name);
+			}
+			for(Subscription subscription : new ArrayList<Subscription>(subscriptionHandles))
+				subscription.unsubscribe();
+			if(isAdvertised())
+				unadvertise();
+		}
+
 		protected void setAdvertised(boolean advertised) {
 			this.advertised = advertised;
 		}
@@ -409,70 +1293,252 @@ public class ROS {
 			return advertised;
 		}
 
+		/**
+		 * Set the compression rosbridge applies to the messages of this
+		 * topic: "none", "png", or "cbor" (binary frames, with numeric
+		 * arrays received as typed arrays).
+		 * 
+		 * @param compression The compression.
+		 */
 		public void setCompression(String compression) {
 			this.compression = compression;
+			resubscribe();
+		}
+
+		public String getCompression() {
+			return compression;
+		}
+
+		/**
+		 * Set the minimum interval between messages sent by rosbridge
+		 * on this topic (0 for no throttling).
+		 * 
+		 * @param throttleRate Interval in milliseconds.
+		 */
+		public void setThrottleRate(int throttleRate) {
+			this.throttleRate = throttleRate;
+			resubscribe();
+		}
+
+		public int getThrottleRate() {
+			return throttleRate;
+		}
+
+		/**
+		 * Set the number of messages rosbridge buffers for this topic
+		 * when throttling (0 for the rosbridge default).
+		 * 
+		 * @param queueLength Queue length.
+		 */
+		public void setQueueLength(int queueLength) {
+			this.queueLength = queueLength;
+			resubscribe();
+		}
+
+		public int getQueueLength() {
+			return queueLength;
+		}
+
+		/**
+		 * Set the maximum size of the frames rosbridge sends for this
+		 * topic; bigger messages are fragmented, and reassembled on
+		 * arrival (0 for no fragmentation).
+		 * 
+		 * @param fragmentSize Size in bytes.
+		 */
+		public void setFragmentSize(int fragmentSize) {
+			this.fragmentSize = fragmentSize;
+			resubscribe();
+		}
+
+		public int getFragmentSize() {
+			return fragmentSize;
+		}
+
+		/**
+		 * @return true if the topic is subscribed, through any handle.
+		 */
+		public boolean isSubscribed() {
+			return subscriptions.containsKey(name);
+		}
+
+		/**
+		 * Enable latest-value coalescing of incoming messages. Messages
+		 * arriving faster than they are delivered replace each other, and
+		 * only the latest one reaches the listeners.
+		 * 
+		 * The setting applies to all the listeners of the topic.
+		 * 
+		 * @param interval {@link ROS#COALESCE_ANIMATION_FRAME} to deliver once per
+		 *        animation frame, a delivery interval in milliseconds, or
+		 *        {@link ROS#NO_COALESCING} to deliver every message.
+		 */
+		public void setCoalescing(int interval) {
+			getSlot().setCoalesceInterval(interval);
+		}
+
+		public int getCoalescing() {
+			return getSlot().getCoalesceInterval();
+		}
+
+		/**
+		 * @return The number of messages replaced by a newer one before
+		 *         being delivered, because of coalescing.
+		 */
+		public int getDroppedMessageCount() {
+			return getSlot().getDroppedMessageCount();
+		}
+		
+		@Override
+		public String toString() {
+			return getName();
+		}
+
+		/**
+		 * Register a handler for subscribing to this topic.
+		 * 
+		 * Subscriptions are shared: the subscribe op is sent for the
+		 * first listener of the topic (of any handle), and the
+		 * unsubscribe op when the last one is removed.
+		 * 
+		 * @param listener Async callback.
+		 * @return The {@link Subscription}, for removing the listener.
+		 */
+		public Subscription subscribe(MessageListener listener) {
+			getSlot().add(listener);
+			if(!isSubscribed())
+				sendSubscribe();
+			return new Subscription(this, listener, null);
+		}
+
+		/**
+		 * Unsubscribe from this topic (unregister all handlers!).
+		 * 
+		 * @deprecated This removes the listeners of every user of the topic;
+		 *             use {@link Subscription#unsubscribe()} instead.
+		 */
+		@Deprecated
+		public void unsubscribe() {
+			getSlot().clear();
+			releaseSlot();
+			typedDispatchers.remove(getName());
+			for(Subscription subscription : subscriptionHandles)
+				subscription.active = false;
+			subscriptionHandles.clear();
+			sendUnsubscribe();
+		}
+
+		/**
+		 * @return A subscription of a typed listener made with this
+		 *         handle, or null if none.
+		 */
+		protected Subscription findSubscription(TypedMessageListener<?> typedListener) {
+			for(Subscription subscription : subscriptionHandles) {
+				if(subscription.typedListener == typedListener)
+					return subscription;
+			}
+			return null;
+		}
+
+		/**
+		 * Remove a listener, and unsubscribe if it was the last one.
+		 */
+		private void removeListener(MessageListener listener) {
+			TopicSlot s = getSlot();
+			boolean removed = s.remove(listener);
+			if(s.isEmpty()) {
+				releaseSlot();
+				if(removed)
+					sendUnsubscribe();
+			}
 		}
 
-		public String getCompression() {
-			return compression;
-		}
-		
-		@Override
-		public String toString() {
-			return getName();
+		/**
+		 * Send the subscribe op, with the options of this handle.
+		 */
+		protected void sendSubscribe() {
+			Topic owner = subscriptions.get(name);
+			if(owner != null && owner != this) {
+				// keep the same id, so that rosbridge updates the options:
+				subscribeId = owner.subscribeId;
+				owner.subscribeId = null;
+			}
+			if(subscribeId == null)
+				subscribeId = uidGenerator.generate("subscribe", name);
+			subscriptions.put(name, this);
+			sendState(subscribeOp());
 		}
 
 		/**
-		 * Register a handler for subscribing to this topic.
-		 * 
-		 * @param listener Async callback.
+		 * Build the subscribe op, with the current options.
 		 */
-		public void subscribe(final MessageListener listener) {
-			final String subscribeId = uidGenerator.generate("subscribe", name);
-			addMessageListener(getName(), new MessageListener() {
-				public void onMessage(JSONObject message) {
-					listener.onMessage(message);
-				}
-			});
-			// TODO: queue message if not connected
+		protected JSONObject subscribeOp() {
 			JSONObject o = new JSONObject();
 			o.put("op", new JSONString("subscribe"));
 			o.put("id", new JSONString(subscribeId));
-			o.put("type", new JSONString(messageType));
+			// without a type, rosbridge looks it up from the topic:
+			if(messageType != null)
+				o.put("type", new JSONString(messageType));
 			o.put("topic", new JSONString(name));
 			o.put("compression", new JSONString(compression));
-			send(o);
+			if(throttleRate > 0)
+				o.put("throttle_rate", new JSONNumber(throttleRate));
+			if(queueLength > 0)
+				o.put("queue_length", new JSONNumber(queueLength));
+			if(fragmentSize > 0)
+				o.put("fragment_size", new JSONNumber(fragmentSize));
+			return o;
 		}
 
 		/**
-		 * Unsubscribe from this topic (unregister all handlers!).
-		 * 
+		 * Send the subscribe op again if subscribed, so that rosbridge
+		 * applies the current options.
 		 */
-		public void unsubscribe() {
-			removeAllMessageListeners(getName());
-			final String unsubscribeId = uidGenerator.generate("unsubscribe", name);
-			// TODO: queue message if not connected
+		protected void resubscribe() {
+			if(isSubscribed())
+				sendSubscribe();
+		}
+
+		/**
+		 * Send the unsubscribe op. It carries no id, so rosbridge drops
+		 * all the subscriptions of this connection to the topic, matching
+		 * the listeners dropped locally.
+		 */
+		protected void sendUnsubscribe() {
+			Topic owner = subscriptions.remove(name);
+			if(owner != null)
+				owner.subscribeId = null;
 			JSONObject o = new JSONObject();
 			o.put("op", new JSONString("unsubscribe"));
-			o.put("id", new JSONString(unsubscribeId));
 			o.put("topic", new JSONString(name));
-			send(o);
+			sendState(o);
 		}
 
 		/**
 		 * Advertise other nodes that this topic is being published.
 		 * 
+		 * @throws IllegalStateException if the topic has no message type.
 		 */
 		public void advertise() {
+			if(messageType == null)
+				throw new IllegalStateException("Can't advertise topic " + name + " without a message type");
+			advertisements.put(name, this);
+			sendState(advertiseOp());
+			setAdvertised(true);
+		};
+
+		/**
+		 * Build the advertise op.
+		 */
+		protected JSONObject advertiseOp() {
 			final String advertiseId = uidGenerator.generate("advertise", name);
 			JSONObject o = new JSONObject();
 			o.put("op", new JSONString("advertise"));
 			o.put("id", new JSONString(advertiseId));
 			o.put("type", new JSONString(messageType));
 			o.put("topic", new JSONString(name));
-			send(o);
-			setAdvertised(true);
-		};
+			return o;
+		}
 
 		/**
 		 * Stop advertising other nodes that this topic is being published.
@@ -484,19 +1550,145 @@ public class ROS {
 			o.put("op", new JSONString("unadvertise"));
 			o.put("id", new JSONString(unadvertiseId));
 			o.put("topic", new JSONString(name));
-			send(o);
+			if(advertisements.get(name) == this) {
+				advertisements.remove(name);
+				latestPublishes.remove(name);
+			}
+			sendState(o);
 			setAdvertised(false);
+			cancelPendingPublish();
 		};
 
+		/**
+		 * Limit the rate of outgoing messages on this topic. Messages
+		 * published faster than that are coalesced: each one replaces
+		 * the previous unsent one, and the latest is sent as soon as
+		 * the interval has elapsed.
+		 * 
+		 * @param publishInterval Minimum interval between published
+		 *        messages in milliseconds (0 for no limit).
+		 */
+		public void setPublishInterval(int publishInterval) {
+			this.publishInterval = publishInterval;
+			if(publishInterval <= 0 && hasPendingPublish) {
+				publishTimer.cancel();
+				flushPendingPublish();
+			}
+		}
+
+		public int getPublishInterval() {
+			return publishInterval;
+		}
+
+		/**
+		 * Keep the latest message published while disconnected, and
+		 * send it on (re)connect. By default, messages published while
+		 * disconnected are dropped.
+		 * 
+		 * @param keepLatestWhileDisconnected true to keep the latest message.
+		 */
+		public void setKeepLatestWhileDisconnected(boolean keepLatestWhileDisconnected) {
+			this.keepLatestWhileDisconnected = keepLatestWhileDisconnected;
+			if(!keepLatestWhileDisconnected && latestPublishes.remove(name) != null)
+				droppedPublishes++;
+		}
+
+		public boolean isKeepLatestWhileDisconnected() {
+			return keepLatestWhileDisconnected;
+		}
+
+		/**
+		 * @return The number of messages sent to rosbridge on this topic
+		 *         (or kept to be sent on reconnect).
+		 */
+		public int getPublishedMessageCount() {
+			return publishedMessages;
+		}
+
+		/**
+		 * @return The number of messages dropped (or replaced by a newer
+		 *         one) because published while disconnected.
+		 */
+		public int getDroppedPublishCount() {
+			return droppedPublishes;
+		}
+
+		/**
+		 * @return The number of messages replaced by a newer one before
+		 *         being sent, because of the publish rate limit.
+		 */
+		public int getCoalescedPublishCount() {
+			return coalescedPublishes;
+		}
+
+		/**
+		 * Apply the publish rate limit.
+		 * 
+		 * @return true if the message has been queued, false if it
+		 *         must be sent now.
+		 */
+		private boolean throttlePublish(JSONValue json, Message message) {
+			if(publishInterval <= 0) return false;
+			double now = Duration.currentTimeMillis();
+			double elapsed = now - lastPublishTime;
+			if(!hasPendingPublish && elapsed >= publishInterval) {
+				lastPublishTime = now;
+				return false;
+			}
+			pendingJSON = json;
+			pendingMessage = message;
+			if(hasPendingPublish) {
+				coalescedPublishes++;
+				return true;
+			}
+			hasPendingPublish = true;
+			if(publishTimer == null) {
+				publishTimer = new Timer() {
+					@Override
+					public void run() {
+						flushPendingPublish();
+					}
+				};
+			}
+			publishTimer.schedule(Math.max(1, (int)(publishInterval - elapsed)));
+			return true;
+		}
+
+		private void flushPendingPublish() {
+			JSONValue json = pendingJSON;
+			Message message = pendingMessage;
+			cancelPendingPublish();
+			lastPublishTime = Duration.currentTimeMillis();
+			if(message != null)
+				sendPublish(message);
+			else
+				sendPublish(json);
+		}
+
+		private void cancelPendingPublish() {
+			if(publishTimer != null)
+				publishTimer.cancel();
+			hasPendingPublish = false;
+			pendingJSON = null;
+			pendingMessage = null;
+		}
+
 		/**
 		 * Publish a message to this topic.
 		 * 
 		 * If this topic has not been advertised yet, it will be
 		 * automatically advertised.
 		 * 
+		 * The message may be delayed and coalesced, see {@link #setPublishInterval}.
+		 * 
 		 * @param message Message to publish.
 		 */
 		public void publish(JSONValue message) {
+			if(!throttlePublish(message, null))
+				sendPublish(message);
+		}
+
+		private void sendPublish(JSONValue message) {
 			if(!isAdvertised()) {
 				advertise();
 			}
@@ -506,7 +1698,249 @@ public class ROS {
 			o.put("id", new JSONString(publishId));
 			o.put("topic", new JSONString(name));
 			o.put("msg", message);
-			send(o);
+			transmitPublish(o.toString());
+		}
+
+		/**
+		 * Publish a message to this topic.
+		 * 
+		 * The publish op and the message are serialized into a single
+		 * buffer, without building an intermediate JSON tree.
+		 * 
+		 * If this topic has not been advertised yet, it will be
+		 * automatically advertised.
+		 * 
+		 * The message may be delayed and coalesced, see {@link #setPublishInterval}.
+		 * 
+		 * @param message Message to publish.
+		 */
+		public void publish(Message message) {
+			if(!throttlePublish(null, message))
+				sendPublish(message);
+		}
+
+		private void sendPublish(Message message) {
+			if(!isAdvertised()) {
+				advertise();
+			}
+			final String publishId = uidGenerator.generate("publish", name);
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"op\":\"publish\",\"id\":");
+			JSONWriter.writeString(sb, publishId);
+			sb.append(",\"topic\":");
+			JSONWriter.writeString(sb, name);
+			sb.append(",\"msg\":");
+			message.writeJSON(sb);
+			sb.append('}');
+			transmitPublish(sb.toString());
+		}
+
+		/**
+		 * Send a publish op now, or keep it for the reconnection (see
+		 * {@link #setKeepLatestWhileDisconnected}), or drop it.
+		 */
+		private void transmitPublish(String rawMessage) {
+			if(connected) {
+				transmit(rawMessage);
+			} else if(keepLatestWhileDisconnected) {
+				if(latestPublishes.put(name, rawMessage) != null)
+					droppedPublishes++;
+			} else {
+				droppedPublishes++;
+				return;
+			}
+			publishedMessages++;
+		}
+	}
+	
+	/**
+	 * Decodes the messages of a topic once, and dispatches the decoded
+	 * instance to all the {@link TypedMessageListener}s of the topic.
+	 */
+	private class TypedDispatcher<T extends Message> implements MessageListener {
+		private final MessageFactory<T> factory;
+		private final String messageType;
+		
+		/**
+		 * Copy-on-write, so listeners can be removed while dispatching.
+		 */
+		private List<TypedMessageListener<T>> listeners = new ArrayList<TypedMessageListener<T>>();
+		
+		/**
+		 * Number of registrations of each listener: a listener added
+		 * twice stays until removed twice.
+		 */
+		private Map<TypedMessageListener<T>, Integer> counts = new HashMap<TypedMessageListener<T>, Integer>();
+		
+		public TypedDispatcher(MessageFactory<T> factory, String messageType) {
+			this.factory = factory;
+			this.messageType = messageType;
+		}
+		
+		public void onMessage(JSONObject message) {
+			T decoded = factory.newMessage();
+			if(!decoded.parse(message)) {
+				System.out.println("Failed to decode " + messageType + ": " + message.toString());
+				return;
+			}
+			for(TypedMessageListener<T> listener : listeners) {
+				listener.onMessage(decoded);
+			}
+		}
+		
+		public boolean add(TypedMessageListener<T> listener) {
+			Integer count = counts.get(listener);
+			counts.put(listener, count == null ? 1 : count + 1);
+			if(count != null) return false;
+			List<TypedMessageListener<T>> l = new ArrayList<TypedMessageListener<T>>(listeners);
+			l.add(listener);
+			listeners = l;
+			return true;
+		}
+		
+		public boolean remove(TypedMessageListener<T> listener) {
+			Integer count = counts.get(listener);
+			if(count == null) return false;
+			if(count > 1) {
+				counts.put(listener, count - 1);
+				return false;
+			}
+			counts.remove(listener);
+			List<TypedMessageListener<T>> l = new ArrayList<TypedMessageListener<T>>(listeners);
+			l.remove(listener);
+			listeners = l;
+			return true;
+		}
+		
+		public boolean isEmpty() {
+			return listeners.isEmpty();
+		}
+	}
+	
+	/**
+	 * Typed topic class.
+	 * 
+	 * Like {@link Topic}, but messages are exchanged as generated
+	 * {@link Message} objects. Incoming messages are decoded once per
+	 * topic, and the same instance is passed to all the listeners.
+	 * 
+	 * An instance of this class can be obtained with {@link ROS#newTopic(String, MessageFactory)}.
+	 * 
+	 * @author Federico Ferri
+	 *
+	 */
+	public class TypedTopic<T extends Message> extends Topic {
+		private final MessageFactory<T> factory;
+		
+		protected TypedTopic(String name, MessageFactory<T> factory) {
+			super(name, factory.newMessage().getFullTypeName());
+			this.factory = factory;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private TypedDispatcher<T> getDispatcher(boolean create) {
+			TypedDispatcher<?> d = typedDispatchers.get(getName());
+			if(d != null) {
+				if(!d.messageType.equals(getMessageType()))
+					throw new IllegalArgumentException("Topic " + getName() + " is already subscribed with type " + d.messageType + ", not " + getMessageType());
+				return (TypedDispatcher<T>)d;
+			}
+			if(!create) return null;
+			TypedDispatcher<T> n = new TypedDispatcher<T>(factory, getMessageType());
+			typedDispatchers.put(getName(), n);
+			return n;
+		}
+		
+		/**
+		 * Register a typed handler for subscribing to this topic.
+		 * 
+		 * Subscriptions are shared, as with {@link Topic#subscribe(MessageListener)}.
+		 * 
+		 * @param listener Async callback.
+		 * @return The {@link Subscription}, for removing the listener.
+		 */
+		public Subscription subscribe(TypedMessageListener<T> listener) {
+			TypedDispatcher<T> d = getDispatcher(true);
+			boolean first = d.isEmpty();
+			if(d.add(listener) && first) {
+				getSlot().add(d);
+				if(!isSubscribed())
+					sendSubscribe();
+			}
+			return new Subscription(this, null, listener);
+		}
+		
+		/**
+		 * Deregister a typed handler, as with {@link Subscription#unsubscribe()}
+		 * on (one of) the subscriptions returned for it. The topic is
+		 * unsubscribed when no handlers are left.
+		 * 
+		 * @param listener The handler to deregister.
+		 */
+		public void unsubscribe(TypedMessageListener<T> listener) {
+			Subscription subscription = findSubscription(listener);
+			if(subscription != null)
+				subscription.unsubscribe();
+			else
+				removeTypedListener(listener);
+		}
+		
+		@SuppressWarnings("unchecked")
+		private void removeTypedListener(TypedMessageListener<?> listener) {
+			TypedDispatcher<T> d = getDispatcher(false);
+			if(d == null || !d.remove((TypedMessageListener<T>)listener) || !d.isEmpty())
+				return;
+			typedDispatchers.remove(getName());
+			getSlot().remove(d);
+			if(getSlot().isEmpty()) {
+				releaseSlot();
+				sendUnsubscribe();
+			}
+		}
+	}
+	
+	/**
+	 * A listener subscribed to a topic.
+	 * 
+	 * An instance of this class is returned by {@link Topic#subscribe(MessageListener)}
+	 * and {@link TypedTopic#subscribe(TypedMessageListener)}.
+	 * 
+	 * @author Federico Ferri
+	 *
+	 */
+	public class Subscription {
+		private final Topic topic;
+		private final MessageListener listener;
+		private final TypedMessageListener<?> typedListener;
+		private boolean active = true;
+		
+		protected Subscription(Topic topic, MessageListener listener, TypedMessageListener<?> typedListener) {
+			this.topic = topic;
+			this.listener = listener;
+			this.typedListener = typedListener;
+			topic.subscriptionHandles.add(this);
+		}
+		
+		public Topic getTopic() {
+			return topic;
+		}
+		
+		public boolean isActive() {
+			return active;
+		}
+		
+		/**
+		 * Remove the listener. The topic is unsubscribed when no
+		 * listeners are left.
+		 */
+		public void unsubscribe() {
+			if(!active) return;
+			active = false;
+			topic.subscriptionHandles.remove(this);
+			if(typedListener != null)
+				((TypedTopic<?>)topic).removeTypedListener(typedListener);
+			else
+				topic.removeListener(listener);
 		}
 	}
 	
@@ -515,7 +1949,8 @@ public class ROS {
 	 * 
 	 * Use this class for calling ROS services.
 	 * 
-	 * An instance of this class can be obtained with {@link ROS#newService}.
+	 * An instance of this class can be obtained with {@link ROS#newService},
+	 * and released with {@link #release()} when no longer used.
 	 * 
 	 * @author Federico Ferri
 	 *
@@ -523,6 +1958,11 @@ public class ROS {
 	public class Service {
 		private String name;
 		private String serviceType;
+		
+		/**
+		 * Number of users of this (interned) handle.
+		 */
+		private int refCount = 0;
 
 		protected Service(String name, String serviceType) {
 			this.name = name;
@@ -537,6 +1977,17 @@ public class ROS {
 			return serviceType;
 		}
 		
+		/**
+		 * Release this handle. When all its users have released it, the
+		 * next call to {@link ROS#newService} returns a new handle.
+		 * Pending calls are not affected.
+		 */
+		public void release() {
+			if(refCount <= 0 || --refCount > 0) return;
+			if(serviceHandles.get(name) == this)
+				serviceHandles.remove(name);
+		}
+		
 		@Override
 		public String toString() {
 			return getName();
@@ -545,24 +1996,174 @@ public class ROS {
 		/**
 		 * Make a call to this service.
 		 * 
+		 * The listener is called only if the call succeeds; use
+		 * {@link #call(JSONObject, Callback)} to be notified of failures.
+		 * 
 		 * @param args Arguments to the service.
 		 * @param listener Async result callback.
 		 */
 		public void callService(JSONObject args, final MessageListener listener) {
-			final String serviceCallId = uidGenerator.generate("call_service", name);
-			if(listener != null)
-				addMessageListener(serviceCallId, new MessageListener() {
-					public void onMessage(JSONObject message) {
-						listener.onMessage(message);
-						removeMessageListener(serviceCallId, this);
-					}
-				});
+			if(listener == null) {
+				JSONObject o = new JSONObject();
+				o.put("op", new JSONString("call_service"));
+				o.put("id", new JSONString(uidGenerator.generate("call_service", name)));
+				o.put("service", new JSONString(name));
+				o.put("args", args);
+				send(o);
+				return;
+			}
+			call(args, new Callback<JSONObject, ServiceCallException>() {
+				public void onSuccess(JSONObject result) {
+					listener.onMessage(result);
+				}
+
+				public void onFailure(ServiceCallException reason) {
+					System.out.println("Service call failed: " + reason.getMessage());
+				}
+			});
+		}
+
+		/**
+		 * Make a call to this service, with the default timeout
+		 * (see {@link ROS#setServiceCallTimeout}).
+		 * 
+		 * @param args Arguments to the service.
+		 * @param callback Async result callback.
+		 * @return The {@link ServiceCall}, which can be cancelled.
+		 */
+		public ServiceCall call(JSONObject args, Callback<JSONObject, ServiceCallException> callback) {
+			return call(args, callback, serviceCallTimeout);
+		}
+
+		/**
+		 * Make a call to this service.
+		 * 
+		 * The callback is called exactly once: with the values of the
+		 * response, or with a {@link ServiceCallException} if the service
+		 * fails, or the call times out, is cancelled or disconnected.
+		 * 
+		 * @param args Arguments to the service.
+		 * @param callback Async result callback.
+		 * @param timeout Timeout in milliseconds (0 for no timeout).
+		 * @return The {@link ServiceCall}, which can be cancelled.
+		 */
+		public ServiceCall call(JSONObject args, Callback<JSONObject, ServiceCallException> callback, int timeout) {
+			ServiceCall call = new ServiceCall(this, args, callback, timeout);
+			queuedCalls.addLast(call);
+			startQueuedCalls();
+			return call;
+		}
+	}
+	
+	/**
+	 * A call to a {@link Service}, pending until its response arrives.
+	 * 
+	 * Calls are sent as soon as fewer than the maximum concurrent calls
+	 * (see {@link ROS#setMaxConcurrentCalls}) are in flight. Calls made
+	 * while disconnected are sent when the connection is re-established.
+	 * Calls already sent are never sent again: if the connection drops
+	 * before the response arrives, they fail with
+	 * {@link ServiceCallException.Reason#DISCONNECTED}, as they may or
+	 * may not have been executed.
+	 * 
+	 * @author Federico Ferri
+	 *
+	 */
+	public class ServiceCall {
+		private final String id;
+		private final Service service;
+		private final String op;
+		private final Callback<JSONObject, ServiceCallException> callback;
+		private final int timeout;
+		private Timer timer;
+		private boolean done = false;
+		
+		/**
+		 * Whether the call_service op has been sent. A call made while
+		 * disconnected is sent on (re)connect.
+		 */
+		private boolean transmitted = false;
+		
+		protected ServiceCall(Service service, JSONObject args, Callback<JSONObject, ServiceCallException> callback, int timeout) {
+			this.id = uidGenerator.generate("call_service", service.getName());
+			this.service = service;
+			this.callback = callback;
 			JSONObject o = new JSONObject();
 			o.put("op", new JSONString("call_service"));
-			o.put("id", new JSONString(serviceCallId));
-			o.put("service", new JSONString(name));
+			o.put("id", new JSONString(id));
+			o.put("service", new JSONString(service.getName()));
 			o.put("args", args);
-			send(o);
+			this.op = o.toString();
+			this.timeout = timeout;
+		}
+		
+		public String getId() {
+			return id;
+		}
+		
+		public Service getService() {
+			return service;
+		}
+		
+		/**
+		 * @return true if the call has completed, failed, or has been cancelled.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+		
+		/**
+		 * Cancel the call. The callback is notified with
+		 * {@link ServiceCallException.Reason#CANCELLED}, and the
+		 * response, if any, is ignored.
+		 */
+		public void cancel() {
+			fail(ServiceCallException.Reason.CANCELLED, "cancelled");
+		}
+		
+		private void start() {
+			pendingCalls.put(id, this);
+			// the timeout starts here, not while queued:
+			if(timeout > 0) {
+				timer = new Timer() {
+					@Override
+					public void run() {
+						fail(ServiceCallException.Reason.TIMEOUT, "no response");
+					}
+				};
+				timer.schedule(timeout);
+			}
+			if(connected) {
+				transmitted = true;
+				transmit(op);
+			}
+		}
+		
+		/**
+		 * Remove the call from the pending (or queued) calls.
+		 * 
+		 * @return false if the call was already done.
+		 */
+		private boolean finish() {
+			if(done) return false;
+			done = true;
+			if(timer != null)
+				timer.cancel();
+			if(pendingCalls.remove(id) != null)
+				startQueuedCalls();
+			else
+				queuedCalls.remove(this);
+			return true;
+		}
+		
+		private void succeed(JSONObject values) {
+			if(finish())
+				callback.onSuccess(values);
+		}
+		
+		private void fail(ServiceCallException.Reason reason, String message) {
+			if(finish())
+				callback.onFailure(new ServiceCallException(reason, service.getName(), message));
 		}
 	}
 	
@@ -571,7 +2172,8 @@ public class ROS {
 	 * 
 	 * Use this class to get or set ROS params.
 	 * 
-	 * An instance of this class can be obtained with {@link ROS#newParam}.
+	 * An instance of this class can be obtained with {@link ROS#newParam},
+	 * and released with {@link #release()} when no longer used.
 	 * 
 	 * @author Federico Ferri
 	 *
@@ -579,6 +2181,11 @@ public class ROS {
 	public class Param {
 		private String name;
 		
+		/**
+		 * Number of users of this (interned) handle.
+		 */
+		private int refCount = 0;
+		
 		protected Param(String name) {
 			this.name = name;
 		}
@@ -587,23 +2194,35 @@ public class ROS {
 			return name;
 		}
 		
+		/**
+		 * Release this handle. When all its users have released it, the
+		 * next call to {@link ROS#newParam} returns a new handle.
+		 */
+		public void release() {
+			if(refCount <= 0 || --refCount > 0) return;
+			if(paramHandles.get(name) == this)
+				paramHandles.remove(name);
+		}
+		
 		@Override
 		public String toString() {
 			return getName();
 		}
 		
 		/**
-		 * Get the value of this param.
+		 * Get the value of this param (JSON encoded), through the
+		 * {@link ParamStore}.
 		 * 
 		 * @param callback Async result callback.
 		 */
 		public void get(final ValueListener<String> callback) {
-			Service paramClient = new Service("/rosapi/get_param", "rosapi/GetParam");
-			JSONObject serviceArgs = new JSONObject();
-			serviceArgs.put("name", new JSONString(name));
-			paramClient.callService(serviceArgs, new MessageListener() {
-				public void onMessage(JSONObject message) {
-					callback.onValue(message.get("value").isString().stringValue());
+			getParamStore().get(name, new Callback<JSONValue, ServiceCallException>() {
+				public void onSuccess(JSONValue value) {
+					callback.onValue(value.toString());
+				}
+
+				public void onFailure(ServiceCallException reason) {
+					System.out.println("Failed to get param: " + reason.getMessage());
 				}
 			});
 		}
@@ -611,14 +2230,20 @@ public class ROS {
 		/**
 		 * Set the value of this param.
 		 * 
-		 * @param value Param value to set.
+		 * @param value Param value to set (JSON encoded).
 		 */
 		public void set(String value) {
-			Service paramClient = new Service("/rosapi/set_param", "rosapi/SetParam");
-			JSONObject serviceArgs = new JSONObject();
-			serviceArgs.put("name", new JSONString(name));
-			serviceArgs.put("value", new JSONString(value));
-			paramClient.callService(serviceArgs, null);
+			set(value, null);
+		}
+		
+		/**
+		 * Set the value of this param, through the {@link ParamStore}.
+		 * 
+		 * @param value Param value to set (JSON encoded).
+		 * @param callback Async result callback (may be null).
+		 */
+		public void set(String value, Callback<Void, ServiceCallException> callback) {
+			getParamStore().set(name, ParamStore.parseValue(value), callback);
 		}
 	}
 }
@@ -0,0 +1,141 @@
+package org.ros.gwt.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.ros.gwt.client.ROS.Service;
+
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONParser;
+
+/**
+ * Cache of the responses of side-effect free service calls (the rosapi
+ * introspection services), keyed by service name and arguments.
+ *
+ * Responses are kept for a TTL. Identical calls made while one is in
+ * flight wait for its response, instead of making another round trip.
+ * Failures are not cached.
+ *
+ * Callbacks are always called asynchronously, also on a cache hit, and
+ * each one receives its own copy of the response, so that it can't
+ * alter what other callers get.
+ *
+ * @author Federico Ferri
+ *
+ */
+class ServiceCache {
+	private static class Entry {
+		/**
+		 * The response, serialized, so that each caller gets a copy.
+		 */
+		public String values;
+		public double expires;
+		public List<Callback<JSONObject, ServiceCallException>> waiters = new ArrayList<Callback<JSONObject, ServiceCallException>>();
+
+		public boolean isInFlight() {
+			return waiters != null;
+		}
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private int ttl = 5000;
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * @param ttl Time to live of the cached responses in milliseconds
+	 *        (0 to only share the calls in flight).
+	 */
+	public void setTTL(int ttl) {
+		this.ttl = ttl;
+	}
+
+	public int getTTL() {
+		return ttl;
+	}
+
+	public int getHitCount() {
+		return hits;
+	}
+
+	public int getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Drop all the cached responses. Calls in flight are not affected.
+	 */
+	public void invalidate() {
+		for(Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+			if(!i.next().isInFlight())
+				i.remove();
+		}
+	}
+
+	/**
+	 * Call a service, or get its cached response.
+	 *
+	 * @param service The service.
+	 * @param args Arguments to the service.
+	 * @param callback Async result callback.
+	 */
+	public void call(Service service, JSONObject args, final Callback<JSONObject, ServiceCallException> callback) {
+		final String key = service.getName() + "\n" + args.toString();
+		Entry entry = entries.get(key);
+		if(entry != null && !entry.isInFlight() && entry.expires <= Duration.currentTimeMillis()) {
+			entries.remove(key);
+			entry = null;
+		}
+		if(entry != null) {
+			hits++;
+			if(entry.isInFlight()) {
+				entry.waiters.add(callback);
+			} else {
+				final String values = entry.values;
+				Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+					public void execute() {
+						callback.onSuccess(copy(values));
+					}
+				});
+			}
+			return;
+		}
+		misses++;
+		final Entry e = new Entry();
+		e.waiters.add(callback);
+		entries.put(key, e);
+		service.call(args, new Callback<JSONObject, ServiceCallException>() {
+			public void onSuccess(JSONObject values) {
+				List<Callback<JSONObject, ServiceCallException>> waiters = e.waiters;
+				e.waiters = null;
+				e.values = values.toString();
+				e.expires = Duration.currentTimeMillis() + ttl;
+				if(ttl <= 0 && entries.get(key) == e)
+					entries.remove(key);
+				// the first caller gets the response itself, the others a copy:
+				for(int i = 0; i < waiters.size(); i++)
+					waiters.get(i).onSuccess(i == 0 ? values : copy(e.values));
+			}
+
+			public void onFailure(ServiceCallException reason) {
+				List<Callback<JSONObject, ServiceCallException>> waiters = e.waiters;
+				e.waiters = null;
+				if(entries.get(key) == e)
+					entries.remove(key);
+				for(Callback<JSONObject, ServiceCallException> waiter : waiters)
+					waiter.onFailure(reason);
+			}
+		});
+	}
+
+	private static JSONObject copy(String values) {
+		return JSONParser.parseStrict(values).isObject();
+	}
+}
@@ -0,0 +1,53 @@
+package org.ros.gwt.client;
+
+/**
+ * Failure of a service call made with
+ * {@link ROS.Service#call(com.google.gwt.json.client.JSONObject, com.google.gwt.core.client.Callback)}.
+ *
+ * @author Federico Ferri
+ *
+ */
+public class ServiceCallException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public static enum Reason {
+		/**
+		 * No response arrived within the timeout.
+		 */
+		TIMEOUT,
+
+		/**
+		 * The call was cancelled with {@link ROS.ServiceCall#cancel()}.
+		 */
+		CANCELLED,
+
+		/**
+		 * The service responded with result=false.
+		 */
+		FAILED,
+
+		/**
+		 * The connection was closed with {@link ROS#disconnect()}, or
+		 * dropped while the call was in flight (the call may or may not
+		 * have been executed).
+		 */
+		DISCONNECTED
+	}
+
+	private final Reason reason;
+	private final String serviceName;
+
+	public ServiceCallException(Reason reason, String serviceName, String message) {
+		super(serviceName + ": " + message);
+		this.reason = reason;
+		this.serviceName = serviceName;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+
+	public String getServiceName() {
+		return serviceName;
+	}
+}
@@ -0,0 +1,130 @@
+package org.ros.gwt.client;
+
+import com.google.gwt.animation.client.AnimationScheduler;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationCallback;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationHandle;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.user.client.Timer;
+
+/**
+ * Listeners of a topic, with optional latest-value coalescing.
+ *
+ * When coalescing, incoming messages are not dispatched right away:
+ * only the latest one is kept, and it is delivered once per animation
+ * frame (or once per interval). Raw frames are kept unparsed, so the
+ * messages that are replaced are never parsed at all.
+ *
+ * @author Federico Ferri
+ *
+ */
+class TopicSlot extends ListenerSlot {
+	private int coalesceInterval = ROS.NO_COALESCING;
+
+	private String pendingFrame;
+	private JSONObject pendingMessage;
+	private boolean flushScheduled = false;
+	private AnimationHandle animationHandle;
+	private int droppedMessages = 0;
+
+	private final AnimationCallback animationCallback = new AnimationCallback() {
+		public void execute(double timestamp) {
+			flush();
+		}
+	};
+
+	private final Timer timer = new Timer() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public boolean isCoalescing() {
+		return coalesceInterval != ROS.NO_COALESCING;
+	}
+
+	public void setCoalesceInterval(int coalesceInterval) {
+		this.coalesceInterval = coalesceInterval;
+		if(!flushScheduled) return;
+		cancelFlush();
+		if(isCoalescing())
+			scheduleFlush();
+		else
+			flush();
+	}
+
+	public int getCoalesceInterval() {
+		return coalesceInterval;
+	}
+
+	public int getDroppedMessageCount() {
+		return droppedMessages;
+	}
+
+	/**
+	 * Offer a raw publish frame, to be parsed only if it is delivered.
+	 */
+	public void offerFrame(String rawFrame) {
+		if(pendingFrame != null || pendingMessage != null)
+			droppedMessages++;
+		pendingFrame = rawFrame;
+		pendingMessage = null;
+		scheduleFlush();
+	}
+
+	/**
+	 * Offer an already parsed topic message.
+	 */
+	public void offerMessage(JSONObject message) {
+		if(pendingFrame != null || pendingMessage != null)
+			droppedMessages++;
+		pendingFrame = null;
+		pendingMessage = message;
+		scheduleFlush();
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		pendingFrame = null;
+		pendingMessage = null;
+		cancelFlush();
+	}
+
+	private void scheduleFlush() {
+		if(flushScheduled) return;
+		flushScheduled = true;
+		if(coalesceInterval == ROS.COALESCE_ANIMATION_FRAME)
+			animationHandle = AnimationScheduler.get().requestAnimationFrame(animationCallback);
+		else
+			timer.schedule(coalesceInterval);
+	}
+
+	private void cancelFlush() {
+		flushScheduled = false;
+		timer.cancel();
+		if(animationHandle != null) {
+			animationHandle.cancel();
+			animationHandle = null;
+		}
+	}
+
+	private void flush() {
+		flushScheduled = false;
+		animationHandle = null;
+		JSONObject message = pendingMessage;
+		if(pendingFrame != null) {
+			try {
+				message = JSONParser.parseStrict(pendingFrame).isObject().get("msg").isObject();
+			} catch(RuntimeException e) {
+				System.out.println("Malformed publish frame: " + pendingFrame);
+				message = null;
+			}
+		}
+		pendingFrame = null;
+		pendingMessage = null;
+		if(message != null)
+			dispatch(message);
+	}
+}
@@ -0,0 +1,33 @@
+package org.ros.gwt.client;
+
+import com.google.gwt.json.client.JSONObject;
+
+/**
+ * Connection to rosbridge used by {@link ROS}.
+ *
+ * A transport delivers incoming frames either as raw text, or already
+ * parsed (when parsing is done elsewhere, e.g. in a Web Worker).
+ *
+ * @author Federico Ferri
+ *
+ */
+interface Transport {
+	/**
+	 * Receiver of the events of a {@link Transport}.
+	 */
+	public static interface Listener {
+		public void onOpen();
+
+		public void onMessage(String rawMessage);
+
+		public void onMessage(JSONObject message);
+
+		public void onError();
+
+		public void onClose();
+	}
+
+	public void send(String rawMessage);
+
+	public void close();
+}
@@ -0,0 +1,76 @@
+package org.ros.gwt.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.json.client.JSONObject;
+
+/**
+ * {@link Transport} over a WebSocket on the main thread.
+ *
+ * Text frames are delivered as raw text. Binary frames (sent by
+ * rosbridge for topics subscribed with compression="cbor") are
+ * received as ArrayBuffers, and decoded with {@link CborDecoder}.
+ *
+ * @author Federico Ferri
+ *
+ */
+class WebSocketTransport implements Transport {
+	private final Listener listener;
+	private JavaScriptObject socket;
+
+	public WebSocketTransport(String url, Listener listener) {
+		this.listener = listener;
+		open(url);
+	}
+
+	private native void open(String url) /*-{
+		var self = this;
+		var socket = new $wnd.WebSocket(url);
+		socket.binaryType = 'arraybuffer';
+		socket.onopen = $entry(function() {
+			self.@org.ros.gwt.client.WebSocketTransport::onOpen()();
+		});
+		socket.onmessage = $entry(function(e) {
+			if(typeof e.data === 'string')
+				self.@org.ros.gwt.client.WebSocketTransport::onText(Ljava/lang/String;)(e.data);
+			else
+				self.@org.ros.gwt.client.WebSocketTransport::onBinary(Lcom/google/gwt/core/client/JavaScriptObject;)(e.data);
+		});
+		socket.onerror = $entry(function() {
+			self.@org.ros.gwt.client.WebSocketTransport::onError()();
+		});
+		socket.onclose = $entry(function() {
+			self.@org.ros.gwt.client.WebSocketTransport::onClose()();
+		});
+		this.@org.ros.gwt.client.WebSocketTransport::socket = socket;
+	}-*/;
+
+	private void onOpen() {
+		listener.onOpen();
+	}
+
+	private void onText(String rawMessage) {
+		listener.onMessage(rawMessage);
+	}
+
+	private void onBinary(JavaScriptObject buffer) {
+		JSONObject message = CborDecoder.decodeFrame(buffer);
+		if(message != null)
+			listener.onMessage(message);
+	}
+
+	private void onError() {
+		listener.onError();
+	}
+
+	private void onClose() {
+		listener.onClose();
+	}
+
+	public native void send(String rawMessage) /*-{
+		this.@org.ros.gwt.client.WebSocketTransport::socket.send(rawMessage);
+	}-*/;
+
+	public native void close() /*-{
+		this.@org.ros.gwt.client.WebSocketTransport::socket.close();
+	}-*/;
+}
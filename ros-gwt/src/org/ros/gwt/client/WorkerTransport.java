@@ -0,0 +1,213 @@
+package org.ros.gwt.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.json.client.JSONObject;
+
+/**
+ * {@link Transport} over a WebSocket owned by a dedicated Web Worker.
+ *
+ * The worker receives the frames and parses them with JSON.parse, so
+ * that parsing big frames (maps, point clouds) does not block the UI.
+ * Parsed frames are posted to the main thread as objects, and wrapped
+ * in a {@link JSONObject} without parsing them again. Frames the worker
+ * can't parse into an object are posted as raw text. Binary (CBOR)
+ * frames are transferred to the main thread without copying, and
+ * decoded there with {@link CborDecoder}.
+ *
+ * The worker script is built into a Blob URL, so no extra file has to
+ * be deployed with the application. If the worker can't be started
+ * (e.g. a Content-Security-Policy forbids blob: workers), the transport
+ * falls back to a {@link WebSocketTransport}, and later instances go
+ * straight to it.
+ *
+ * @author Federico Ferri
+ *
+ */
+class WorkerTransport implements Transport {
+	private static final String WORKER_SCRIPT =
+		"var ws = null;\n" +
+		"postMessage({type: 'ready'});\n" +
+		"onmessage = function(e) {\n" +
+		"  var d = e.data;\n" +
+		"  if(d.type === 'connect') {\n" +
+		"    ws = new WebSocket(d.url);\n" +
+		"    ws.binaryType = 'arraybuffer';\n" +
+		"    ws.onopen = function() { postMessage({type: 'open'}); };\n" +
+		"    ws.onerror = function() { postMessage({type: 'error'}); };\n" +
+		"    ws.onclose = function() { postMessage({type: 'close'}); };\n" +
+		"    ws.onmessage = function(m) {\n" +
+		"      if(typeof m.data !== 'string') {\n" +
+		"        postMessage({type: 'binary', data: m.data}, [m.data]);\n" +
+		"        return;\n" +
+		"      }\n" +
+		"      var obj = null;\n" +
+		"      try { obj = JSON.parse(m.data); } catch(x) {}\n" +
+		"      if(obj !== null && typeof obj === 'object' && !Array.isArray(obj))\n" +
+		"        postMessage({type: 'message', data: obj});\n" +
+		"      else\n" +
+		"        postMessage({type: 'text', data: m.data});\n" +
+		"    };\n" +
+		"  } else if(d.type === 'send') {\n" +
+		"    ws.send(d.data);\n" +
+		"  } else if(d.type === 'close') {\n" +
+		"    ws.close();\n" +
+		"  }\n" +
+		"};\n";
+
+	/**
+	 * Blob URL of the worker script, created once.
+	 */
+	private static String scriptUrl;
+
+	/**
+	 * Set once a worker has failed to start.
+	 */
+	private static boolean unavailable = false;
+
+	private final String url;
+	private final Listener listener;
+	private JavaScriptObject worker;
+
+	/**
+	 * Whether the worker script is running.
+	 */
+	private boolean started = false;
+
+	/**
+	 * Transport used instead of the worker, if it failed to start.
+	 */
+	private Transport fallback;
+
+	public WorkerTransport(String url, Listener listener) {
+		this.url = url;
+		this.listener = listener;
+		if(scriptUrl == null)
+			scriptUrl = createScriptUrl(WORKER_SCRIPT);
+		if(!open(scriptUrl, url))
+			fallBack();
+	}
+
+	/**
+	 * @return true if the browser supports running the transport in a
+	 *         worker, and no worker has failed to start so far.
+	 */
+	public static boolean isSupported() {
+		return !unavailable && isWorkerSupported();
+	}
+
+	private static native boolean isWorkerSupported() /*-{
+		return typeof $wnd.Worker === 'function' && typeof $wnd.Blob === 'function'
+			&& !!$wnd.URL && typeof $wnd.URL.createObjectURL === 'function';
+	}-*/;
+
+	private static native String createScriptUrl(String script) /*-{
+		return $wnd.URL.createObjectURL(new $wnd.Blob([script], {type: 'application/javascript'}));
+	}-*/;
+
+	/**
+	 * @return false if the worker could not be created.
+	 */
+	private native boolean open(String scriptUrl, String url) /*-{
+		var self = this;
+		var worker;
+		try {
+			worker = new $wnd.Worker(scriptUrl);
+		} catch(e) {
+			return false;
+		}
+		worker.onmessage = $entry(function(e) {
+			var d = e.data;
+			if(d.type === 'ready')
+				self.@org.ros.gwt.client.WorkerTransport::onReady()();
+			else if(d.type === 'message')
+				self.@org.ros.gwt.client.WorkerTransport::onObject(Lcom/google/gwt/core/client/JavaScriptObject;)(d.data);
+			else if(d.type === 'binary')
+				self.@org.ros.gwt.client.WorkerTransport::onBinary(Lcom/google/gwt/core/client/JavaScriptObject;)(d.data);
+			else if(d.type === 'text')
+				self.@org.ros.gwt.client.WorkerTransport::onText(Ljava/lang/String;)(d.data);
+			else if(d.type === 'open')
+				self.@org.ros.gwt.client.WorkerTransport::onOpen()();
+			else if(d.type === 'error')
+				self.@org.ros.gwt.client.WorkerTransport::onError()();
+			else if(d.type === 'close')
+				self.@org.ros.gwt.client.WorkerTransport::onClose()();
+		});
+		worker.onerror = $entry(function(e) {
+			self.@org.ros.gwt.client.WorkerTransport::onWorkerError()();
+		});
+		worker.postMessage({type: 'connect', url: url});
+		this.@org.ros.gwt.client.WorkerTransport::worker = worker;
+		return true;
+	}-*/;
+
+	private native void post(String type, String data) /*-{
+		this.@org.ros.gwt.client.WorkerTransport::worker.postMessage({type: type, data: data});
+	}-*/;
+
+	private native void terminate() /*-{
+		var worker = this.@org.ros.gwt.client.WorkerTransport::worker;
+		if(worker)
+			worker.terminate();
+	}-*/;
+
+	private void onReady() {
+		started = true;
+	}
+
+	private void onWorkerError() {
+		if(started) {
+			onError();
+			return;
+		}
+		// the script never ran: connect from the main thread instead
+		terminate();
+		fallBack();
+	}
+
+	private void fallBack() {
+		unavailable = true;
+		worker = null;
+		fallback = new WebSocketTransport(url, listener);
+	}
+
+	private void onOpen() {
+		listener.onOpen();
+	}
+
+	private void onObject(JavaScriptObject message) {
+		listener.onMessage(new JSONObject(message));
+	}
+
+	private void onText(String rawMessage) {
+		listener.onMessage(rawMessage);
+	}
+
+	private void onBinary(JavaScriptObject buffer) {
+		JSONObject message = CborDecoder.decodeFrame(buffer);
+		if(message != null)
+			listener.onMessage(message);
+	}
+
+	private void onError() {
+		listener.onError();
+	}
+
+	private void onClose() {
+		terminate();
+		listener.onClose();
+	}
+
+	public void send(String rawMessage) {
+		if(fallback != null)
+			fallback.send(rawMessage);
+		else
+			post("send", rawMessage);
+	}
+
+	public void close() {
+		if(fallback != null)
+			fallback.close();
+		else
+			post("close", null);
+	}
+}
@@ -0,0 +1,195 @@
+package org.ros.gwt.client.msg_core;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArrayNumber;
+import com.google.gwt.json.client.JSONArray;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONString;
+import com.google.gwt.json.client.JSONValue;
+
+/**
+ * Bulk conversion of numeric arrays between JSON and Java primitive arrays.
+ *
+ * Elements are read from and written to the native JS array directly,
+ * without creating a {@link com.google.gwt.json.client.JSONNumber}
+ * wrapper per element.
+ *
+ * Byte arrays (uint8[] and char[]) are exchanged as base64 strings,
+ * as rosbridge does.
+ *
+ * Arrays decoded from binary (CBOR) frames are typed arrays (wrapped
+ * in a {@link com.google.gwt.json.client.JSONObject}); they are read
+ * directly as well.
+ */
+public final class ArrayCodec {
+	private ArrayCodec() {}
+
+	private static JsArrayNumber nativeArray(JSONValue v) {
+		JSONArray a = v.isArray();
+		if(a != null)
+			return a.getJavaScriptObject().cast();
+		JSONObject o = v.isObject();
+		if(o != null && isTypedArray(o.getJavaScriptObject()))
+			return o.getJavaScriptObject().cast();
+		throw new IllegalArgumentException("not an array: " + v);
+	}
+
+	private static native boolean isTypedArray(JavaScriptObject o) /*-{
+		return typeof ArrayBuffer === 'function' && ArrayBuffer.isView(o) && !(o instanceof DataView);
+	}-*/;
+
+	private static JsArrayNumber newNativeArray(int length) {
+		JsArrayNumber a = JavaScriptObject.createArray().cast();
+		a.setLength(length);
+		return a;
+	}
+
+	public static double[] toDoubleArray(JSONValue v) {
+		JsArrayNumber a = nativeArray(v);
+		double[] ret = new double[a.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = a.get(i);
+		return ret;
+	}
+
+	public static float[] toFloatArray(JSONValue v) {
+		JsArrayNumber a = nativeArray(v);
+		float[] ret = new float[a.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = (float)a.get(i);
+		return ret;
+	}
+
+	public static long[] toLongArray(JSONValue v) {
+		JsArrayNumber a = nativeArray(v);
+		long[] ret = new long[a.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = (long)a.get(i);
+		return ret;
+	}
+
+	public static int[] toIntArray(JSONValue v) {
+		JsArrayNumber a = nativeArray(v);
+		int[] ret = new int[a.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = (int)a.get(i);
+		return ret;
+	}
+
+	public static short[] toShortArray(JSONValue v) {
+		JsArrayNumber a = nativeArray(v);
+		short[] ret = new short[a.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = (short)a.get(i);
+		return ret;
+	}
+
+	public static byte[] toByteArray(JSONValue v) {
+		JSONString base64 = v.isString();
+		if(base64 != null)
+			return decodeBase64(base64.stringValue());
+		JsArrayNumber a = nativeArray(v);
+		byte[] ret = new byte[a.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = (byte)a.get(i);
+		return ret;
+	}
+
+	public static char[] toCharArray(JSONValue v) {
+		JSONString base64 = v.isString();
+		if(base64 != null)
+			return atob(base64.stringValue()).toCharArray();
+		JsArrayNumber a = nativeArray(v);
+		char[] ret = new char[a.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = (char)((int)a.get(i) & 0xff);
+		return ret;
+	}
+
+	public static JSONString toBase64(byte[] v) {
+		return new JSONString(encodeBase64(v));
+	}
+
+	public static JSONString toBase64(char[] v) {
+		return new JSONString(encodeBase64(v));
+	}
+
+	/**
+	 * Decode a base64 string with the browser's native decoder.
+	 */
+	public static byte[] decodeBase64(String base64) {
+		String binary = atob(base64);
+		byte[] ret = new byte[binary.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = (byte)binary.charAt(i);
+		return ret;
+	}
+
+	/**
+	 * Encode a byte array with the browser's native base64 encoder.
+	 */
+	public static String encodeBase64(byte[] data) {
+		char[] binary = new char[data.length];
+		for(int i = 0; i < binary.length; i++)
+			binary[i] = (char)(data[i] & 0xff);
+		return btoa(new String(binary));
+	}
+
+	/**
+	 * Encode a char array (one byte per char) with the browser's native
+	 * base64 encoder.
+	 */
+	public static String encodeBase64(char[] data) {
+		return btoa(new String(data));
+	}
+
+	private static native String atob(String base64) /*-{
+		return $wnd.atob(base64);
+	}-*/;
+
+	private static native String btoa(String binary) /*-{
+		return $wnd.btoa(binary);
+	}-*/;
+
+	public static JSONArray toJSON(double[] v) {
+		JsArrayNumber a = newNativeArray(v.length);
+		for(int i = 0; i < v.length; i++)
+			a.set(i, v[i]);
+		return new JSONArray(a);
+	}
+
+	public static JSONArray toJSON(float[] v) {
+		JsArrayNumber a = newNativeArray(v.length);
+		for(int i = 0; i < v.length; i++)
+			a.set(i, v[i]);
+		return new JSONArray(a);
+	}
+
+	public static JSONArray toJSON(long[] v) {
+		JsArrayNumber a = newNativeArray(v.length);
+		for(int i = 0; i < v.length; i++)
+			a.set(i, v[i]);
+		return new JSONArray(a);
+	}
+
+	public static JSONArray toJSON(int[] v) {
+		JsArrayNumber a = newNativeArray(v.length);
+		for(int i = 0; i < v.length; i++)
+			a.set(i, v[i]);
+		return new JSONArray(a);
+	}
+
+	public static JSONArray toJSON(short[] v) {
+		JsArrayNumber a = newNativeArray(v.length);
+		for(int i = 0; i < v.length; i++)
+			a.set(i, v[i]);
+		return new JSONArray(a);
+	}
+
+	public static JSONArray toJSON(byte[] v) {
+		JsArrayNumber a = newNativeArray(v.length);
+		for(int i = 0; i < v.length; i++)
+			a.set(i, v[i]);
+		return new JSONArray(a);
+	}
+}
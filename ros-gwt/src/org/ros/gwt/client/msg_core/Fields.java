@@ -0,0 +1,224 @@
+package org.ros.gwt.client.msg_core;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+/**
+ * Allocation-free field comparison and hashing, used by the
+ * equals() and hashCode() methods generated by MsgGen.
+ *
+ * Numbers are compared with ==, except that NaN equals NaN, and hashed
+ * so that equal values (e.g. 0.0 and -0.0) have the same hash. Only
+ * long fields are hashed with long arithmetic, which is emulated (and
+ * allocates) under GWT: doubles are hashed from their IEEE 754 bits,
+ * read through a typed array view.
+ */
+public final class Fields {
+	private Fields() {}
+
+	public static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	public static int hash(Object v) {
+		return v == null ? 0 : v.hashCode();
+	}
+
+	public static int hash(boolean v) {
+		return v ? 1231 : 1237;
+	}
+
+	public static int hash(int v) {
+		return v;
+	}
+
+	public static int hash(long v) {
+		return (int)(v ^ (v >>> 32));
+	}
+
+	public static int hash(double v) {
+		if(v == 0) return 0; // 0.0 and -0.0
+		if(v != v) return 0x7ff80000; // all the NaNs
+		return hashBits(v);
+	}
+
+	/**
+	 * Float64Array(1), and an Int32Array view of its buffer, created on first use.
+	 */
+	private static JavaScriptObject float64;
+	private static JavaScriptObject int32;
+
+	/**
+	 * @return The XOR of the high and low words of the bits of v.
+	 */
+	private static native int hashBits(double v) /*-{
+		var f = @org.ros.gwt.client.msg_core.Fields::float64;
+		if(!f) {
+			f = @org.ros.gwt.client.msg_core.Fields::float64 = new Float64Array(1);
+			@org.ros.gwt.client.msg_core.Fields::int32 = new Int32Array(f.buffer);
+		}
+		f[0] = v;
+		var i = @org.ros.gwt.client.msg_core.Fields::int32;
+		return i[0] ^ i[1];
+	}-*/;
+
+	public static boolean equal(double a, double b) {
+		return a == b || (a != a && b != b);
+	}
+
+	public static boolean equal(float a, float b) {
+		return a == b || (a != a && b != b);
+	}
+
+	public static boolean equal(double[] a, double[] b) {
+		if(a == b) return true;
+		if(a == null || b == null || a.length != b.length) return false;
+		for(int i = 0; i < a.length; i++) {
+			if(!equal(a[i], b[i])) return false;
+		}
+		return true;
+	}
+
+	public static int hash(double[] a) {
+		if(a == null) return 0;
+		int h = 1;
+		for(int i = 0; i < a.length; i++)
+			h = 31 * h + hash(a[i]);
+		return h;
+	}
+
+	public static boolean equal(float[] a, float[] b) {
+		if(a == b) return true;
+		if(a == null || b == null || a.length != b.length) return false;
+		for(int i = 0; i < a.length; i++) {
+			if(!equal(a[i], b[i])) return false;
+		}
+		return true;
+	}
+
+	public static int hash(float[] a) {
+		if(a == null) return 0;
+		int h = 1;
+		for(int i = 0; i < a.length; i++)
+			h = 31 * h + hash(a[i]);
+		return h;
+	}
+
+	public static boolean equal(long[] a, long[] b) {
+		if(a == b) return true;
+		if(a == null || b == null || a.length != b.length) return false;
+		for(int i = 0; i < a.length; i++) {
+			if(!(a[i] == b[i])) return false;
+		}
+		return true;
+	}
+
+	public static int hash(long[] a) {
+		if(a == null) return 0;
+		int h = 1;
+		for(int i = 0; i < a.length; i++)
+			h = 31 * h + hash(a[i]);
+		return h;
+	}
+
+	public static boolean equal(int[] a, int[] b) {
+		if(a == b) return true;
+		if(a == null || b == null || a.length != b.length) return false;
+		for(int i = 0; i < a.length; i++) {
+			if(!(a[i] == b[i])) return false;
+		}
+		return true;
+	}
+
+	public static int hash(int[] a) {
+		if(a == null) return 0;
+		int h = 1;
+		for(int i = 0; i < a.length; i++)
+			h = 31 * h + hash(a[i]);
+		return h;
+	}
+
+	public static boolean equal(short[] a, short[] b) {
+		if(a == b) return true;
+		if(a == null || b == null || a.length != b.length) return false;
+		for(int i = 0; i < a.length; i++) {
+			if(!(a[i] == b[i])) return false;
+		}
+		return true;
+	}
+
+	public static int hash(short[] a) {
+		if(a == null) return 0;
+		int h = 1;
+		for(int i = 0; i < a.length; i++)
+			h = 31 * h + hash(a[i]);
+		return h;
+	}
+
+	public static boolean equal(byte[] a, byte[] b) {
+		if(a == b) return true;
+		if(a == null || b == null || a.length != b.length) return false;
+		for(int i = 0; i < a.length; i++) {
+			if(!(a[i] == b[i])) return false;
+		}
+		return true;
+	}
+
+	public static int hash(byte[] a) {
+		if(a == null) return 0;
+		int h = 1;
+		for(int i = 0; i < a.length; i++)
+			h = 31 * h + hash(a[i]);
+		return h;
+	}
+
+	public static boolean equal(char[] a, char[] b) {
+		if(a == b) return true;
+		if(a == null || b == null || a.length != b.length) return false;
+		for(int i = 0; i < a.length; i++) {
+			if(!(a[i] == b[i])) return false;
+		}
+		return true;
+	}
+
+	public static int hash(char[] a) {
+		if(a == null) return 0;
+		int h = 1;
+		for(int i = 0; i < a.length; i++)
+			h = 31 * h + hash(a[i]);
+		return h;
+	}
+
+	public static boolean equal(boolean[] a, boolean[] b) {
+		if(a == b) return true;
+		if(a == null || b == null || a.length != b.length) return false;
+		for(int i = 0; i < a.length; i++) {
+			if(!(a[i] == b[i])) return false;
+		}
+		return true;
+	}
+
+	public static int hash(boolean[] a) {
+		if(a == null) return 0;
+		int h = 1;
+		for(int i = 0; i < a.length; i++)
+			h = 31 * h + hash(a[i]);
+		return h;
+	}
+
+	public static boolean equal(Object[] a, Object[] b) {
+		if(a == b) return true;
+		if(a == null || b == null || a.length != b.length) return false;
+		for(int i = 0; i < a.length; i++) {
+			if(!(equal(a[i], b[i]))) return false;
+		}
+		return true;
+	}
+
+	public static int hash(Object[] a) {
+		if(a == null) return 0;
+		int h = 1;
+		for(int i = 0; i < a.length; i++)
+			h = 31 * h + hash(a[i]);
+		return h;
+	}
+}
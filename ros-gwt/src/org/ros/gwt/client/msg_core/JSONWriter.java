@@ -0,0 +1,107 @@
+package org.ros.gwt.client.msg_core;
+
+import com.google.gwt.core.client.JsonUtils;
+
+/**
+ * Helpers for serializing messages straight into a {@link StringBuilder},
+ * without building a {@link com.google.gwt.json.client.JSONValue} tree.
+ *
+ * Used by the {@link Message#writeJSON} methods generated by MsgGen.
+ */
+public final class JSONWriter {
+	private JSONWriter() {}
+
+	public static void writeString(StringBuilder sb, String s) {
+		if(s == null)
+			sb.append("null");
+		else
+			sb.append(JsonUtils.escapeValue(s));
+	}
+
+	public static void writeMessage(StringBuilder sb, Message m) {
+		if(m == null)
+			sb.append("null");
+		else
+			m.writeJSON(sb);
+	}
+
+	public static void writeBase64(StringBuilder sb, byte[] v) {
+		sb.append('"').append(ArrayCodec.encodeBase64(v)).append('"');
+	}
+
+	public static void writeBase64(StringBuilder sb, char[] v) {
+		sb.append('"').append(ArrayCodec.encodeBase64(v)).append('"');
+	}
+
+	public static void writeArray(StringBuilder sb, double[] v) {
+		sb.append('[');
+		for(int i = 0; i < v.length; i++) {
+			if(i > 0) sb.append(',');
+			sb.append(v[i]);
+		}
+		sb.append(']');
+	}
+
+	public static void writeArray(StringBuilder sb, float[] v) {
+		sb.append('[');
+		for(int i = 0; i < v.length; i++) {
+			if(i > 0) sb.append(',');
+			sb.append(v[i]);
+		}
+		sb.append(']');
+	}
+
+	public static void writeArray(StringBuilder sb, long[] v) {
+		sb.append('[');
+		for(int i = 0; i < v.length; i++) {
+			if(i > 0) sb.append(',');
+			sb.append(v[i]);
+		}
+		sb.append(']');
+	}
+
+	public static void writeArray(StringBuilder sb, int[] v) {
+		sb.append('[');
+		for(int i = 0; i < v.length; i++) {
+			if(i > 0) sb.append(',');
+			sb.append(v[i]);
+		}
+		sb.append(']');
+	}
+
+	public static void writeArray(StringBuilder sb, short[] v) {
+		sb.append('[');
+		for(int i = 0; i < v.length; i++) {
+			if(i > 0) sb.append(',');
+			sb.append(v[i]);
+		}
+		sb.append(']');
+	}
+
+	public static void writeArray(StringBuilder sb, byte[] v) {
+		sb.append('[');
+		for(int i = 0; i < v.length; i++) {
+			if(i > 0) sb.append(',');
+			sb.append(v[i]);
+		}
+		sb.append(']');
+	}
+
+	public static void writeArray(StringBuilder sb, String[] v) {
+		sb.append('[');
+		for(int i = 0; i < v.length; i++) {
+			if(i > 0) sb.append(',');
+			writeString(sb, v[i]);
+		}
+		sb.append(']');
+	}
+
+	public static void writeArray(StringBuilder sb, Message[] v) {
+		sb.append('[');
+		for(int i = 0; i < v.length; i++) {
+			if(i > 0) sb.append(',');
+			writeMessage(sb, v[i]);
+		}
+		sb.append(']');
+	}
+}
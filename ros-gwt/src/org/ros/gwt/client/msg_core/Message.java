@@ -9,17 +9,40 @@ public abstract class Message {
 	
 	public abstract JSONValue toJSON();
 	
+	/**
+	 * Serialize this message as JSON text, appending it to a buffer.
+	 * 
+	 * Generated messages override this to write their fields directly;
+	 * the default implementation goes through {@link #toJSON()}.
+	 * 
+	 * @param sb The buffer to append to.
+	 */
+	public void writeJSON(StringBuilder sb) {
+		sb.append(toJSON().toString());
+	}
+	
 	public abstract String getTypeName();
 	
 	public abstract String getPackageName();
 	
 	public abstract String getFullTypeName();
 	
+	/**
+	 * Compare the JSON serializations of two messages.
+	 * 
+	 * Generated messages override this (and {@link #hashCode()}) with
+	 * a field-wise comparison.
+	 */
 	@Override
 	public boolean equals(Object obj) {
 		if(obj == null) return false;
 		if(obj instanceof Message) {
-			return toJSON().equals(((Message)obj).toJSON());
+			return toJSON().toString().equals(((Message)obj).toJSON().toString());
 		} else return false;
 	}
+	
+	@Override
+	public int hashCode() {
+		return toJSON().toString().hashCode();
+	}
 }
@@ -0,0 +1,10 @@
+package org.ros.gwt.client.msg_core;
+
+/**
+ * Creates empty instances of a message type, for decoding.
+ * 
+ * Generated messages expose one as their static FACTORY field.
+ */
+public interface MessageFactory<T extends Message> {
+	public T newMessage();
+}
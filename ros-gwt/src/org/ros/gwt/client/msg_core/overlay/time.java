@@ -0,0 +1,37 @@
+package org.ros.gwt.client.msg_core.overlay;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+/**
+ * Overlay type of the ROS time primitive, as used by the
+ * overlay types generated by MsgGen.
+ * 
+ * Seconds and nanoseconds are read as double, since JSNI can't
+ * return a long.
+ */
+public class time extends JavaScriptObject {
+	protected time() {}
+	
+	public static time create(double secs, double nsecs) {
+		time t = JavaScriptObject.createObject().cast();
+		return t.secs(secs).nsecs(nsecs);
+	}
+	
+	public final native double secs() /*-{
+		return this.secs;
+	}-*/;
+	
+	public final native time secs(double value) /*-{
+		this.secs = value;
+		return this;
+	}-*/;
+	
+	public final native double nsecs() /*-{
+		return this.nsecs;
+	}-*/;
+	
+	public final native time nsecs(double value) /*-{
+		this.nsecs = value;
+		return this;
+	}-*/;
+}
@@ -8,6 +8,12 @@ public class time extends Message {
 	public long secs;
 	public long nsecs;
 
+	public static final MessageFactory<time> FACTORY = new MessageFactory<time>() {
+		public time newMessage() {
+			return new time();
+		}
+	};
+
 	public time() {}
 	
 	public time(long secs_, long nsecs_) {secs=secs_; nsecs=nsecs_;}
@@ -47,4 +53,22 @@ public class time extends Message {
 		o.put("nsecs", new JSONNumber(nsecs));
 		return o;
 	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) return true;
+		if(!(obj instanceof time)) return false;
+		time o = (time)obj;
+		return secs == o.secs && nsecs == o.nsecs;
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * Fields.hash(secs) + Fields.hash(nsecs);
+	}
+	
+	@Override
+	public void writeJSON(StringBuilder sb) {
+		sb.append("{\"secs\":").append(secs).append(",\"nsecs\":").append(nsecs).append('}');
+	}
 }
@@ -9,11 +9,23 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * From a ros .msg file definition generates a Java bean
@@ -23,6 +35,12 @@ import java.util.Set;
  *
  */
 public class MsgGen {
+	/**
+	 * Version of the generated code. Bump whenever the output changes,
+	 * so that incremental runs regenerate everything.
+	 */
+	static final String GENERATOR_VERSION = "8";
+	
 	static String getPackagePath(String classSpec) {
 		int ldp = classSpec.lastIndexOf('.');
 		return ldp < 0 ? "" : classSpec.substring(0, ldp + 1).replace('.', File.separatorChar);
@@ -71,6 +89,15 @@ public class MsgGen {
 		return false;
 	}
 	
+	/**
+	 * Arrays of these types are sent by rosbridge as base64 strings.
+	 */
+	static boolean isByteType(String rosType) {
+		if(rosType.equals("uint8")) return true;
+		if(rosType.equals("char")) return true;
+		return false;
+	}
+	
 	static boolean isPrimitiveType(String rosType) {
 		if(rosType.equals("string")) return true;
 		if(rosType.equals("char")) return true;
@@ -85,44 +112,42 @@ public class MsgGen {
 		return false;
 	}
 	
-	static String getBaseName(String s) {
-		int i = s.lastIndexOf(File.separatorChar);
-		int j = s.lastIndexOf('.');
-		if(i < 0) i = 0; else i++;
-		if(j < 0) j = s.length();
-		return s.substring(i, j);
+	/**
+	 * Java type of a field accessor in a <code>JavaScriptObject</code> overlay.
+	 * 
+	 * Unsigned types are widened and 64 bit integers are read as double,
+	 * since JSNI can't return a long and the native value is a JS number.
+	 */
+	static String getOverlayType(String basePkg, String rosType) {
+		if(rosType.equals("uint8")) return "short";
+		if(rosType.equals("uint16")) return "int";
+		if(rosType.equals("uint32")) return "double";
+		if(rosType.equals("int64")) return "double";
+		if(rosType.equals("uint64")) return "double";
+		if(rosType.equals("duration")) return "com.google.gwt.core.client.JavaScriptObject";
+		if(rosType.equals("time")) return "org.ros.gwt.client.msg_core.overlay.time";
+		return getJavaType(basePkg, rosType);
 	}
 	
-	static List<String> getReversedPathComponents(File file) {
-		List<String> pathComp = new LinkedList<String>();
-		try {file = file.getCanonicalFile();} catch(IOException e) {}
-		while(file != null) {
-			pathComp.add(file.getName());
-			file = file.getParentFile();
-		}
-		return pathComp;
+	static String getOverlayArrayType(String basePkg, String rosType) {
+		// base64, decode with ArrayCodec.decodeBase64():
+		if(isByteType(rosType)) return "String";
+		if(isNumericType(rosType) || rosType.equals("char")) return "com.google.gwt.core.client.JsArrayNumber";
+		if(rosType.equals("string")) return "com.google.gwt.core.client.JsArrayString";
+		if(rosType.equals("bool")) return "com.google.gwt.core.client.JsArrayBoolean";
+		return "com.google.gwt.core.client.JsArray<" + getOverlayType(basePkg, rosType) + ">";
 	}
 	
-	static boolean matchPathNameToMsg(File file, String msgName) {
-		if(!file.isFile()) return false;
-		List<String> pathComp = getReversedPathComponents(file);
-		if(pathComp.size() < 3) return false;
-		ROSMsgType msgType = ROSMsgType.parse(msgName);
-		return (pathComp.get(0).equals(msgType.type + ".msg")
-				&& pathComp.get(1).equals("msg")
-				&& (msgType.pkg == null || pathComp.get(2).equals(msgType.pkg)));
+	static String capitalize(String s) {
+		return s.isEmpty() ? s : Character.toUpperCase(s.charAt(0)) + s.substring(1);
 	}
 	
-	static Set<File> findMatchingMsgs(File root, String msgName, Set<File> result) {
-		if(!root.isDirectory()) throw new IllegalArgumentException();
-		File fs[] = root.listFiles();
-		for(File f : fs) {
-			if(matchPathNameToMsg(f, msgName))
-				result.add(f);
-			else if(f.isDirectory())
-				findMatchingMsgs(f, msgName, result);
-		}
-		return result;
+	static String getBaseName(String s) {
+		int i = s.lastIndexOf(File.separatorChar);
+		int j = s.lastIndexOf('.');
+		if(i < 0) i = 0; else i++;
+		if(j < 0) j = s.length();
+		return s.substring(i, j);
 	}
 	
 	static File askUserWhichFile(Set<File> s) {
@@ -146,41 +171,286 @@ public class MsgGen {
 		return l.get(--j);
 	}
 	
-	static void generateJavaMsg(String rosMsgType, String basePkg, Set<String> generatedMsgs, File rosMsgSearchDir) throws IOException {
-		// avoid cycles:
-		if(generatedMsgs.contains(rosMsgType)) return;
-		generatedMsgs.add(rosMsgType);
-		
-		Set<File> msgSearchResult = findMatchingMsgs(rosMsgSearchDir, rosMsgType, new HashSet<File>());
-		File rosMsgFile = askUserWhichFile(msgSearchResult);
-		if(rosMsgFile == null)
-			throw new RuntimeException("ROS Message '" + rosMsgType + "' not found in " + rosMsgSearchDir.getAbsolutePath());
-		
-		ROSMsgFile rosMsgObj = ROSMsgFile.parse(rosMsgFile);
-		
-		// generate recursively:
+	/**
+	 * How to pick a .msg file when a type is found more than once.
+	 */
+	static enum DuplicatePolicy {
+		/**
+		 * Prompt the user.
+		 */
+		ASK,
+		/**
+		 * Take the first match in search path order.
+		 */
+		FIRST,
+		/**
+		 * Fail.
+		 */
+		ERROR
+	}
+	
+	static File resolveMsgFile(String rosMsgType, ROSMsgIndex msgIndex, DuplicatePolicy duplicatePolicy) {
+		Set<File> s = msgIndex.find(rosMsgType);
+		if(s.isEmpty())
+			throw new RuntimeException("ROS Message '" + rosMsgType + "' not found in " + msgIndex);
+		if(s.size() == 1)
+			return s.iterator().next();
+		switch(duplicatePolicy) {
+		case ASK:
+			return askUserWhichFile(s);
+		case FIRST:
+			File rosMsgFile = s.iterator().next();
+			out.println("Found multiple matches for '" + rosMsgType + "', using " + rosMsgFile.getAbsolutePath());
+			return rosMsgFile;
+		default:
+			throw new RuntimeException("ROS Message '" + rosMsgType + "' found multiple times in " + msgIndex + ": " + s);
+		}
+	}
+	
+	/**
+	 * Expand the command line message names: "pkg/*" stands for all the
+	 * messages of a package.
+	 */
+	static List<String> expandMsgTypes(List<String> msgNames, ROSMsgIndex msgIndex) {
+		List<String> ret = new ArrayList<String>();
+		for(String msgName : msgNames) {
+			if(msgName.endsWith("/*")) {
+				String pkg = msgName.substring(0, msgName.length() - 2);
+				List<String> pkgTypes = msgIndex.listPackage(pkg);
+				if(pkgTypes.isEmpty())
+					throw new RuntimeException("ROS package '" + pkg + "' has no messages in " + msgIndex);
+				ret.addAll(pkgTypes);
+			} else {
+				ret.add(msgName);
+			}
+		}
+		return ret;
+	}
+	
+	static List<String> getDependencies(ROSMsgFile rosMsgObj) {
+		List<String> deps = new ArrayList<String>();
 		for(ROSMsgField field : rosMsgObj.fields) {
-			if(!isPrimitiveType(field.fullType) && !isCoreType(field.fullType))
-				generateJavaMsg(field.fullType, basePkg, generatedMsgs, rosMsgSearchDir);
+			if(!isPrimitiveType(field.fullType) && !isCoreType(field.fullType) && !deps.contains(field.fullType))
+				deps.add(field.fullType);
 		}
-		
+		return deps;
+	}
+	
+	/**
+	 * Qualify the relative field types of a message as ROS does: Header
+	 * stands for std_msgs/Header, and other types are looked up in the
+	 * package of the message first. Types not found there are left
+	 * unqualified, and resolved over the whole search path (see
+	 * {@link #resolveMsgFile}).
+	 * 
+	 * @param rosMsgObj The message, whose fields are replaced.
+	 * @param pkg The package of the message.
+	 */
+	static void qualifyFieldTypes(ROSMsgFile rosMsgObj, String pkg, ROSMsgIndex msgIndex) {
+		for(int i = 0; i < rosMsgObj.fields.size(); i++) {
+			ROSMsgField field = rosMsgObj.fields.get(i);
+			if(field.pkg != null || isPrimitiveType(field.type) || isCoreType(field.type)) continue;
+			String qualifiedPkg = null;
+			if(field.type.equals("Header"))
+				qualifiedPkg = "std_msgs";
+			else if(!msgIndex.find(pkg + "/" + field.type).isEmpty())
+				qualifiedPkg = pkg;
+			if(qualifiedPkg != null)
+				rosMsgObj.fields.set(i, new ROSMsgField(qualifiedPkg, field.type, field.array, field.name));
+		}
+	}
+	
+	static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+	
+	/**
+	 * Build the dependency graph of the given root types, breadth first.
+	 * 
+	 * The .msg files of each level are parsed in parallel. Files are
+	 * resolved on the calling thread, as resolution may prompt the user.
+	 * 
+	 * @return The parsed message definitions, keyed and sorted by type name.
+	 */
+	static SortedMap<String, ROSMsgFile> buildDependencyGraph(Collection<String> rootTypes, ROSMsgIndex msgIndex, DuplicatePolicy duplicatePolicy, ExecutorService executor) throws IOException {
+		SortedMap<String, ROSMsgFile> graph = new TreeMap<String, ROSMsgFile>();
+		Set<String> seen = new HashSet<String>();
+		List<String> level = new ArrayList<String>();
+		for(String rootType : rootTypes) {
+			if(seen.add(rootType)) level.add(rootType);
+		}
+		while(!level.isEmpty()) {
+			List<Future<ROSMsgFile>> parsed = new ArrayList<Future<ROSMsgFile>>();
+			List<File> files = new ArrayList<File>();
+			for(String rosMsgType : level) {
+				final File rosMsgFile = resolveMsgFile(rosMsgType, msgIndex, duplicatePolicy);
+				files.add(rosMsgFile);
+				parsed.add(executor.submit(new Callable<ROSMsgFile>() {
+					public ROSMsgFile call() throws IOException {
+						return ROSMsgFile.parse(rosMsgFile);
+					}
+				}));
+			}
+			List<String> nextLevel = new ArrayList<String>();
+			for(int i = 0; i < level.size(); i++) {
+				ROSMsgFile rosMsgObj = await(parsed.get(i));
+				qualifyFieldTypes(rosMsgObj, files.get(i).getParentFile().getParentFile().getName(), msgIndex);
+				graph.put(level.get(i), rosMsgObj);
+				for(String dep : getDependencies(rosMsgObj)) {
+					if(seen.add(dep)) nextLevel.add(dep);
+				}
+			}
+			level = nextLevel;
+		}
+		return graph;
+	}
+	
+	/**
+	 * Compute the hash of the dependency closure of a type, i.e. of its
+	 * own .msg file and of all the types it depends on, plus the
+	 * generator settings.
+	 */
+	static String getClosureHash(String rosMsgType, String basePkg, boolean overlay, Map<String, ROSMsgFile> graph, Map<String, String> memo) {
+		String hash = memo.get(rosMsgType);
+		if(hash != null) return hash;
+		// break cycles:
+		memo.put(rosMsgType, "");
+		ROSMsgFile rosMsgObj = graph.get(rosMsgType);
+		List<String> parts = new ArrayList<String>();
+		parts.add(GENERATOR_VERSION);
+		parts.add(basePkg);
+		parts.add(overlay ? "overlay" : "bean");
+		parts.add(rosMsgType);
+		parts.add(rosMsgObj.contentHash);
+		for(String dep : getDependencies(rosMsgObj))
+			parts.add(getClosureHash(dep, basePkg, overlay, graph, memo));
+		hash = MsgGenManifest.hash(parts.toArray(new String[parts.size()]));
+		memo.put(rosMsgType, hash);
+		return hash;
+	}
+	
+	/**
+	 * Generate the Java classes of the given root types and of all
+	 * the types they depend on.
+	 * 
+	 * Types are emitted in parallel, since each generated class only
+	 * depends on its own .msg definition.
+	 * 
+	 * Types whose dependency closure hash matches the one recorded in
+	 * the manifest are skipped, and output files are rewritten only
+	 * when their contents change.
+	 * 
+	 * @param rootTypes ROS message types to generate.
+	 * @param basePkg Base Java package of the generated classes.
+	 * @param overlay Generate <code>JavaScriptObject</code> overlay types instead of <code>Message</code> beans.
+	 * @param msgIndex Index of the .msg files.
+	 * @param duplicatePolicy How to pick among multiple matches of a type.
+	 * @param threads Number of worker threads.
+	 * @param manifest Manifest of the previous run, updated on return.
+	 */
+	static void generateJavaMsgs(Collection<String> rootTypes, final String basePkg, final boolean overlay, ROSMsgIndex msgIndex, DuplicatePolicy duplicatePolicy, int threads, final MsgGenManifest manifest) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			SortedMap<String, ROSMsgFile> graph = buildDependencyGraph(rootTypes, msgIndex, duplicatePolicy, executor);
+			Map<String, String> closureHashes = new HashMap<String, String>();
+			
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for(final Map.Entry<String, ROSMsgFile> entry : graph.entrySet()) {
+				final String closureHash = getClosureHash(entry.getKey(), basePkg, overlay, graph, closureHashes);
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws IOException {
+						File outFile = getOutputFile(entry.getKey(), basePkg);
+						if(closureHash.equals(manifest.get(entry.getKey())) && outFile.isFile())
+							return "Up to date " + outFile.getAbsolutePath();
+						String source = overlay
+								? generateOverlaySource(entry.getKey(), basePkg, entry.getValue())
+								: generateJavaSource(entry.getKey(), basePkg, entry.getValue());
+						boolean written = writeJavaMsg(outFile, source);
+						manifest.put(entry.getKey(), closureHash);
+						return (written ? "Generated " : "Unchanged ") + outFile.getAbsolutePath();
+					}
+				}));
+			}
+			// report in type order, so that the output is deterministic:
+			for(Future<String> f : results)
+				out.println(await(f));
+		} finally {
+			executor.shutdown();
+		}
+		manifest.save();
+	}
+	
+	static String getTargetPackage(String rosMsgType, String basePkg) {
 		ROSMsgType rosMsgTypeObj = ROSMsgType.parse(rosMsgType);
 		String targetBasePkg = basePkg;
 		if(rosMsgTypeObj.pkg != null) targetBasePkg += (targetBasePkg.isEmpty() ? "" : ".") + rosMsgTypeObj.pkg;
-		String pkgPath = targetBasePkg.replace('.', File.separatorChar) + File.separator;
-		new File(pkgPath).mkdirs();
-		
-		String outClassName = rosMsgTypeObj.type;
-		File outFile = new File(pkgPath + outClassName + ".java");
+		return targetBasePkg;
+	}
+	
+	static File getOutputFile(String rosMsgType, String basePkg) {
+		String pkgPath = getTargetPackage(rosMsgType, basePkg).replace('.', File.separatorChar) + File.separator;
+		return new File(pkgPath + ROSMsgType.parse(rosMsgType).type + ".java");
+	}
+	
+	/**
+	 * Write a generated source file, unless it already has the same contents.
+	 * 
+	 * @return true if the file has been written.
+	 */
+	static boolean writeJavaMsg(File outFile, String source) throws IOException {
+		if(outFile.isFile() && source.equals(new String(ROSMsgFile.readFully(outFile))))
+			return false;
+		outFile.getParentFile().mkdirs();
+		Writer writer = new BufferedWriter(new FileWriter(outFile));
+		try {
+			writer.write(source);
+		} finally {
+			writer.close();
+		}
+		return true;
+	}
+	
+	/**
+	 * Whether all the fields can be written by a generated writeJSON().
+	 * Otherwise the class keeps the default implementation, which goes
+	 * through toJSON().
+	 */
+	static boolean canWriteJSON(ROSMsgFile rosMsgObj) {
+		for(ROSMsgField f : rosMsgObj.fields) {
+			if(!isPrimitiveType(f.type)) continue;
+			if(f.array && isByteType(f.type)) continue;
+			if(isNumericType(f.type) || f.type.equals("string")) continue;
+			return false;
+		}
+		return true;
+	}
+	
+	static String generateJavaSource(String rosMsgType, String basePkg, ROSMsgFile rosMsgObj) {
+		String targetBasePkg = getTargetPackage(rosMsgType, basePkg);
+		String outClassName = ROSMsgType.parse(rosMsgType).type;
 		
-		BufferedWriter writer = new BufferedWriter(new FileWriter(outFile));
+		StringWriter writer = new StringWriter();
 		boolean _1st = true;
 		String nl = System.getProperty("line.separator");
 		if(!targetBasePkg.equals("")) {
 			writer.write("package " + targetBasePkg + ";" + nl);
 			writer.write("" + nl);
 		}
+		writer.write("import org.ros.gwt.client.msg_core.ArrayCodec;" + nl);
+		writer.write("import org.ros.gwt.client.msg_core.Fields;" + nl);
+		writer.write("import org.ros.gwt.client.msg_core.JSONWriter;" + nl);
 		writer.write("import org.ros.gwt.client.msg_core.Message;" + nl);
+		writer.write("import org.ros.gwt.client.msg_core.MessageFactory;" + nl);
 		writer.write("import org.ros.gwt.client.msg_core.time;" + nl);
 		writer.write("" + nl);
 		writer.write("import com.google.gwt.json.client.*;" + nl);
@@ -190,6 +460,12 @@ public class MsgGen {
 			writer.write("	public " + getJavaType(basePkg, f.fullType) + (f.array ? "[]" : "") + " " + f.name + ";" + nl);
 		}
 		writer.write("	" + nl);
+		writer.write("	public static final MessageFactory<" + outClassName + "> FACTORY = new MessageFactory<" + outClassName + ">() {" + nl);
+		writer.write("		public " + outClassName + " newMessage() {" + nl);
+		writer.write("			return new " + outClassName + "();" + nl);
+		writer.write("		}" + nl);
+		writer.write("	};" + nl);
+		writer.write("	" + nl);
 		writer.write("	public " + outClassName + "() {}" + nl);
 		writer.write("	" + nl);
 		writer.write("	public " + outClassName + "(");
@@ -237,7 +513,10 @@ public class MsgGen {
 		writer.write("		try {" + nl);
 		writer.write("			JSONObject obj = v.isObject();" + nl);
 		for(ROSMsgField f : rosMsgObj.fields) {
-			if(f.array) {
+			if(f.array && (isByteType(f.type) || isNumericType(f.type))) {
+				// ArrayCodec also accepts the base64 strings of byte arrays and CBOR typed arrays:
+				writer.write("			" + f.name + " = ArrayCodec.to" + capitalize(getJavaType(basePkg, f.fullType)) + "Array(obj.get(\"" + f.name + "\"));" + nl);
+			} else if(f.array) {
 				writer.write("			{" + nl);
 				writer.write("				JSONArray a = obj.get(\"" + f.name + "\").isArray();" + nl);
 				writer.write("				" + f.name + " = new " + getJavaType(basePkg, f.fullType) + "[a.size()];" + nl);
@@ -278,7 +557,11 @@ public class MsgGen {
 		writer.write("	public JSONValue toJSON() {" + nl);
 		writer.write("		JSONObject o = new JSONObject();" + nl);
 		for(ROSMsgField f : rosMsgObj.fields) {
-			if(f.array) {
+			if(f.array && isByteType(f.type)) {
+				writer.write("		o.put(\"" + f.name + "\", ArrayCodec.toBase64(" + f.name + "));" + nl);
+			} else if(f.array && isNumericType(f.type)) {
+				writer.write("		o.put(\"" + f.name + "\", ArrayCodec.toJSON(" + f.name + "));" + nl);
+			} else if(f.array) {
 				writer.write("		{" + nl);
 				writer.write("			JSONArray a = new JSONArray();" + nl);
 				writer.write("			for(int i = 0; i < " + f.name + ".length; i++) {" + nl);
@@ -310,26 +593,150 @@ public class MsgGen {
 		}
 		writer.write("		return o;" + nl);
 		writer.write("	}" + nl);
+		writer.write("	" + nl);
+		writer.write("	@Override" + nl);
+		writer.write("	public boolean equals(Object obj) {" + nl);
+		writer.write("		if(this == obj) return true;" + nl);
+		writer.write("		if(!(obj instanceof " + outClassName + ")) return false;" + nl);
+		if(rosMsgObj.fields.isEmpty()) {
+			writer.write("		return true;" + nl);
+		} else {
+			writer.write("		" + outClassName + " o = (" + outClassName + ")obj;" + nl);
+			writer.write("		return ");
+			_1st = true;
+			for(ROSMsgField f : rosMsgObj.fields) {
+				if(!_1st) writer.write(nl + "			&& ");
+				else _1st = false;
+				// floats go through Fields.equal, where NaN equals NaN as it hashes the same:
+				if(!f.array && isPrimitiveType(f.type) && !f.type.equals("string") && !f.type.equals("duration")
+						&& !f.type.equals("float32") && !f.type.equals("float64"))
+					writer.write(f.name + " == o." + f.name);
+				else
+					writer.write("Fields.equal(" + f.name + ", o." + f.name + ")");
+			}
+			writer.write(";" + nl);
+		}
+		writer.write("	}" + nl);
+		writer.write("	" + nl);
+		writer.write("	@Override" + nl);
+		writer.write("	public int hashCode() {" + nl);
+		writer.write("		int h = 1;" + nl);
+		for(ROSMsgField f : rosMsgObj.fields)
+			writer.write("		h = 31 * h + Fields.hash(" + f.name + ");" + nl);
+		writer.write("		return h;" + nl);
+		writer.write("	}" + nl);
+		if(canWriteJSON(rosMsgObj)) {
+			writer.write("	" + nl);
+			writer.write("	@Override" + nl);
+			writer.write("	public void writeJSON(StringBuilder sb) {" + nl);
+			char sep = '{';
+			for(ROSMsgField f : rosMsgObj.fields) {
+				writer.write("		sb.append(\"" + sep + "\\\"" + f.name + "\\\":\");" + nl);
+				sep = ',';
+				if(f.array && isByteType(f.type))
+					writer.write("		JSONWriter.writeBase64(sb, " + f.name + ");" + nl);
+				else if(f.array)
+					writer.write("		JSONWriter.writeArray(sb, " + f.name + ");" + nl);
+				else if(isNumericType(f.type))
+					writer.write("		sb.append(" + f.name + ");" + nl);
+				else if(f.type.equals("string"))
+					writer.write("		JSONWriter.writeString(sb, " + f.name + ");" + nl);
+				else
+					writer.write("		JSONWriter.writeMessage(sb, " + f.name + ");" + nl);
+			}
+			if(sep == '{')
+				writer.write("		sb.append('{');" + nl);
+			writer.write("		sb.append('}');" + nl);
+			writer.write("	}" + nl);
+		}
 		writer.write("}" + nl);
-		writer.close();
-		out.println("Generated " + outFile.getAbsolutePath());
+		return writer.toString();
+	}
+	
+	/**
+	 * Generate a <code>JavaScriptObject</code> overlay type, whose accessors
+	 * read and write the fields of the native object parsed by the
+	 * browser, without copying them into a Java object graph.
+	 */
+	static String generateOverlaySource(String rosMsgType, String basePkg, ROSMsgFile rosMsgObj) {
+		String targetBasePkg = getTargetPackage(rosMsgType, basePkg);
+		ROSMsgType msgTypeObj = ROSMsgType.parse(rosMsgType);
+		String outClassName = msgTypeObj.type;
+		
+		StringWriter writer = new StringWriter();
+		String nl = System.getProperty("line.separator");
+		if(!targetBasePkg.equals("")) {
+			writer.write("package " + targetBasePkg + ";" + nl);
+			writer.write("" + nl);
+		}
+		writer.write("import com.google.gwt.core.client.JavaScriptObject;" + nl);
+		writer.write("import com.google.gwt.json.client.JSONObject;" + nl);
+		writer.write("import com.google.gwt.json.client.JSONValue;" + nl);
+		writer.write("" + nl);
+		writer.write("public class " + outClassName + " extends JavaScriptObject {" + nl);
+		writer.write("	public static final String TYPE = \"" + (msgTypeObj.pkg == null ? "" : msgTypeObj.pkg + "/") + msgTypeObj.type + "\";" + nl);
+		writer.write("	" + nl);
+		writer.write("	protected " + outClassName + "() {}" + nl);
+		writer.write("	" + nl);
+		writer.write("	public static " + outClassName + " create() {" + nl);
+		writer.write("		return JavaScriptObject.createObject().cast();" + nl);
+		writer.write("	}" + nl);
+		writer.write("	" + nl);
+		writer.write("	/**" + nl);
+		writer.write("	 * View a parsed JSON object as " + outClassName + " (no copy is made)." + nl);
+		writer.write("	 */" + nl);
+		writer.write("	public static " + outClassName + " as(JSONValue v) {" + nl);
+		writer.write("		return v.isObject().getJavaScriptObject().cast();" + nl);
+		writer.write("	}" + nl);
+		writer.write("	" + nl);
+		writer.write("	public final JSONObject toJSON() {" + nl);
+		writer.write("		return new JSONObject(this);" + nl);
+		writer.write("	}" + nl);
+		for(ROSMsgField f : rosMsgObj.fields) {
+			String type = f.array ? getOverlayArrayType(basePkg, f.fullType) : getOverlayType(basePkg, f.fullType);
+			writer.write("	" + nl);
+			writer.write("	public final native " + type + " " + f.name + "() /*-{" + nl);
+			writer.write("		return this." + f.name + ";" + nl);
+			writer.write("	}-*/;" + nl);
+			writer.write("	" + nl);
+			writer.write("	public final native " + outClassName + " " + f.name + "(" + type + " value) /*-{" + nl);
+			writer.write("		this." + f.name + " = value;" + nl);
+			writer.write("		return this;" + nl);
+			writer.write("	}-*/;" + nl);
+		}
+		writer.write("}" + nl);
+		return writer.toString();
 	}
 	
 	public static void main(String[] args) throws IOException {
-		if(args.length != 1) {
-			out.println("usage: java " + MsgGen.class + " msgType");
+		String msgSearchPathProp = System.getProperty(MsgGen.class.getName() + ".msgSearchPath", System.getenv("ROS_PACKAGE_PATH"));
+		if(args.length < 1 || msgSearchPathProp == null) {
+			out.println("usage: java " + MsgGen.class + " msgType [msgType...]");
+			out.println("");
+			out.println("msgType is either pkg/Type, Type, or pkg/* for all the messages of pkg");
 			out.println("");
 			out.println("recognized properties:");
 			out.println("  " + MsgGen.class.getName() + ".targetPkg");
-			out.println("  " + MsgGen.class.getName() + ".msgSearchPath");
+			out.println("  " + MsgGen.class.getName() + ".overlay (true to generate JavaScriptObject overlay types)");
+			out.println("  " + MsgGen.class.getName() + ".msgSearchPath (defaults to $ROS_PACKAGE_PATH)");
+			out.println("  " + MsgGen.class.getName() + ".duplicates (ask, first or error)");
+			out.println("  " + MsgGen.class.getName() + ".threads");
+			out.println("  " + MsgGen.class.getName() + ".manifest");
 			out.println("");
 			System.exit(1);
 		}
 		
 		String targetPkg = System.getProperty(MsgGen.class.getName() + ".targetPkg", "");
-		File msgSearchPath = new File(System.getProperty(MsgGen.class.getName() + ".msgSearchPath"));
-		String rosMsg = args[0];
+		boolean overlay = Boolean.getBoolean(MsgGen.class.getName() + ".overlay");
+		List<File> msgSearchPath = ROSMsgIndex.splitSearchPath(msgSearchPathProp);
+		// only prompt when someone can answer:
+		String defaultPolicy = System.console() != null ? "ask" : "first";
+		DuplicatePolicy duplicatePolicy = DuplicatePolicy.valueOf(System.getProperty(MsgGen.class.getName() + ".duplicates", defaultPolicy).toUpperCase());
+		int threads = Integer.getInteger(MsgGen.class.getName() + ".threads", Runtime.getRuntime().availableProcessors());
+		File manifestFile = new File(System.getProperty(MsgGen.class.getName() + ".manifest", ".msggen-manifest"));
 		
-		generateJavaMsg(rosMsg, targetPkg, new HashSet<String>(), msgSearchPath);
+		ROSMsgIndex msgIndex = ROSMsgIndex.scan(msgSearchPath);
+		List<String> rosMsgs = expandMsgTypes(Arrays.asList(args), msgIndex);
+		generateJavaMsgs(rosMsgs, targetPkg, overlay, msgIndex, duplicatePolicy, threads, MsgGenManifest.load(manifestFile));
 	}
 }
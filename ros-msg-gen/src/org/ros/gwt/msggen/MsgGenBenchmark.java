@@ -0,0 +1,214 @@
+package org.ros.gwt.msggen;
+
+import static java.lang.System.out;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Timing harness for the generator on a large, synthetic workspace.
+ *
+ * The workspace is generated from the command line parameters only, so
+ * that runs are reproducible:
+ * <ul>
+ * <li>pkgN/msg/TypeM.msg for each package and type, each with a few
+ * primitive fields, a time, an array, and a reference to the next type
+ * of the same package;</li>
+ * <li>a chain of ChainN.msg types, spread over the packages, each
+ * depending on the next one.</li>
+ * </ul>
+ *
+ * Each run builds the dependency graph of all the types of the first
+ * package plus the head of the chain, and generates their sources in
+ * memory (nothing is written), twice:
+ * <ul>
+ * <li>baseline: as MsgGen did before {@link ROSMsgIndex}, walking the
+ * whole workspace and canonicalizing every file for each type;</li>
+ * <li>indexed: with {@link ROSMsgIndex} and
+ * {@link MsgGen#buildDependencyGraph}.</li>
+ * </ul>
+ * Both produce the same sources; the timings of both are printed.
+ *
+ * usage: java org.ros.gwt.msggen.MsgGenBenchmark [dir [packages [typesPerPackage [chainLength [runs]]]]]
+ *
+ * @author Federico Ferri
+ *
+ */
+public class MsgGenBenchmark {
+	static String getPackageName(int p) {
+		return String.format("pkg%03d", p);
+	}
+
+	static void writeFile(File f, String contents) throws IOException {
+		f.getParentFile().mkdirs();
+		Writer writer = new BufferedWriter(new FileWriter(f));
+		try {
+			writer.write(contents);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Generate the synthetic workspace.
+	 *
+	 * @return The number of .msg files written.
+	 */
+	static int generateWorkspace(File root, int packages, int typesPerPackage, int chainLength) throws IOException {
+		int count = 0;
+		for(int p = 0; p < packages; p++) {
+			String pkg = getPackageName(p);
+			for(int t = 0; t < typesPerPackage; t++) {
+				StringBuilder sb = new StringBuilder();
+				sb.append("# synthetic type ").append(t).append(" of ").append(pkg).append("\n");
+				sb.append("time stamp\n");
+				sb.append("int32 id\n");
+				sb.append("float64 x\n");
+				sb.append("float64[] values\n");
+				sb.append("string label\n");
+				if(t + 1 < typesPerPackage)
+					sb.append(pkg).append("/Type").append(t + 1).append(" next\n");
+				writeFile(new File(root, pkg + "/msg/Type" + t + ".msg"), sb.toString());
+				count++;
+			}
+		}
+		for(int c = 0; c < chainLength; c++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("uint8 level\n");
+			if(c + 1 < chainLength)
+				sb.append(getPackageName((c + 1) % packages)).append("/Chain").append(c + 1).append(" next\n");
+			writeFile(new File(root, getPackageName(c % packages) + "/msg/Chain" + c + ".msg"), sb.toString());
+			count++;
+		}
+		return count;
+	}
+
+	static List<String> getReversedPathComponents(File file) {
+		List<String> pathComp = new LinkedList<String>();
+		try {file = file.getCanonicalFile();} catch(IOException e) {}
+		while(file != null) {
+			pathComp.add(file.getName());
+			file = file.getParentFile();
+		}
+		return pathComp;
+	}
+
+	static boolean matchPathNameToMsg(File file, String msgName) {
+		if(!file.isFile()) return false;
+		List<String> pathComp = getReversedPathComponents(file);
+		if(pathComp.size() < 3) return false;
+		ROSMsgType msgType = ROSMsgType.parse(msgName);
+		return (pathComp.get(0).equals(msgType.type + ".msg")
+				&& pathComp.get(1).equals("msg")
+				&& (msgType.pkg == null || pathComp.get(2).equals(msgType.pkg)));
+	}
+
+	/**
+	 * The lookup used by MsgGen before {@link ROSMsgIndex}: a walk of
+	 * the whole tree for each type.
+	 */
+	static Set<File> findMatchingMsgs(File root, String msgName, Set<File> result) {
+		File fs[] = root.listFiles();
+		for(File f : fs) {
+			if(matchPathNameToMsg(f, msgName))
+				result.add(f);
+			else if(f.isDirectory())
+				findMatchingMsgs(f, msgName, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Build the dependency graph as MsgGen did before {@link ROSMsgIndex}:
+	 * depth first, sequentially, with a tree walk per type.
+	 */
+	static void buildDependencyGraphBaseline(String rosMsgType, File root, SortedMap<String, ROSMsgFile> graph) throws IOException {
+		if(graph.containsKey(rosMsgType)) return;
+		Set<File> s = findMatchingMsgs(root, rosMsgType, new HashSet<File>());
+		if(s.isEmpty())
+			throw new RuntimeException("ROS Message '" + rosMsgType + "' not found in " + root.getAbsolutePath());
+		ROSMsgFile rosMsgObj = ROSMsgFile.parse(s.iterator().next());
+		graph.put(rosMsgType, rosMsgObj);
+		for(String dep : MsgGen.getDependencies(rosMsgObj))
+			buildDependencyGraphBaseline(dep, root, graph);
+	}
+
+	static int generateSources(SortedMap<String, ROSMsgFile> graph) {
+		int length = 0;
+		for(Map.Entry<String, ROSMsgFile> entry : graph.entrySet())
+			length += MsgGen.generateJavaSource(entry.getKey(), "", entry.getValue()).length();
+		return length;
+	}
+
+	static int parseArg(String[] args, int i, int defaultValue) {
+		return args.length > i ? Integer.parseInt(args[i]) : defaultValue;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File root = new File(args.length > 0 ? args[0] : "msggen-benchmark-ws");
+		int packages = parseArg(args, 1, 300);
+		int typesPerPackage = parseArg(args, 2, 100);
+		int chainLength = parseArg(args, 3, 80);
+		int runs = parseArg(args, 4, 3);
+		if(packages < 1 || typesPerPackage < 1) {
+			out.println("usage: java " + MsgGenBenchmark.class.getName() + " [dir [packages [typesPerPackage [chainLength [runs]]]]]");
+			System.exit(1);
+		}
+
+		if(!root.isDirectory()) {
+			int count = generateWorkspace(root, packages, typesPerPackage, chainLength);
+			out.println("Generated " + count + " .msg files in " + root.getAbsolutePath());
+		} else {
+			out.println("Using existing workspace " + root.getAbsolutePath());
+		}
+
+		List<String> rootTypes = new ArrayList<String>();
+		for(int t = 0; t < typesPerPackage; t++)
+			rootTypes.add(getPackageName(0) + "/Type" + t);
+		if(chainLength > 0)
+			rootTypes.add(getPackageName(0) + "/Chain0");
+
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			for(int run = 0; run < runs; run++) {
+				long t0 = System.nanoTime();
+				SortedMap<String, ROSMsgFile> baselineGraph = new TreeMap<String, ROSMsgFile>();
+				for(String rootType : rootTypes)
+					buildDependencyGraphBaseline(rootType, root, baselineGraph);
+				int baselineLength = generateSources(baselineGraph);
+				long t1 = System.nanoTime();
+				out.println(String.format("run %d baseline: %d types, %d chars: total %.1f ms",
+						run, baselineGraph.size(), baselineLength, (t1 - t0) / 1e6));
+
+				long t2 = System.nanoTime();
+				ROSMsgIndex msgIndex = ROSMsgIndex.scan(root);
+				long t3 = System.nanoTime();
+				SortedMap<String, ROSMsgFile> graph = MsgGen.buildDependencyGraph(rootTypes, msgIndex, MsgGen.DuplicatePolicy.ERROR, executor);
+				long t4 = System.nanoTime();
+				int length = generateSources(graph);
+				long t5 = System.nanoTime();
+				out.println(String.format("run %d indexed:  %d types, %d chars: index %.1f ms, graph %.1f ms, generate %.1f ms, total %.1f ms (%.1fx)",
+						run, graph.size(), length,
+						(t3 - t2) / 1e6, (t4 - t3) / 1e6, (t5 - t4) / 1e6, (t5 - t2) / 1e6,
+						(double)(t1 - t0) / (t5 - t2)));
+				if(length != baselineLength || !graph.keySet().equals(baselineGraph.keySet()))
+					out.println("WARNING: baseline and indexed output differ");
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.ros.gwt.msggen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Persistent record of the input hashes of the generated types.
+ *
+ * Each generated type is stored with the hash of its whole dependency
+ * closure, so that later runs can skip types whose inputs are unchanged.
+ *
+ * @author Federico Ferri
+ *
+ */
+public class MsgGenManifest {
+	private final File file;
+	private final Properties hashes = new Properties();
+
+	protected MsgGenManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load a manifest. A missing file yields an empty manifest.
+	 *
+	 * @param file The manifest file.
+	 * @return The manifest.
+	 */
+	public static MsgGenManifest load(File file) throws IOException {
+		MsgGenManifest manifest = new MsgGenManifest(file);
+		if(file.isFile()) {
+			InputStream is = new FileInputStream(file);
+			try {
+				manifest.hashes.load(is);
+			} finally {
+				is.close();
+			}
+		}
+		return manifest;
+	}
+
+	public synchronized String get(String rosMsgType) {
+		return hashes.getProperty(rosMsgType);
+	}
+
+	public synchronized void put(String rosMsgType, String hash) {
+		hashes.setProperty(rosMsgType, hash);
+	}
+
+	public synchronized void save() throws IOException {
+		OutputStream os = new FileOutputStream(file);
+		try {
+			hashes.store(os, "generated by " + MsgGen.class.getName() + ", do not edit");
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Hash a sequence of strings with SHA-1.
+	 *
+	 * @return The hex encoded digest.
+	 */
+	public static String hash(String... parts) {
+		MessageDigest md = newDigest();
+		for(String part : parts) {
+			try {
+				md.update(part.getBytes("UTF-8"));
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+			md.update((byte)0);
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Hash a byte array with SHA-1.
+	 *
+	 * @return The hex encoded digest.
+	 */
+	public static String hash(byte[] data) {
+		return toHex(newDigest().digest(data));
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] digest) {
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for(byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -26,9 +26,11 @@ public class ROSMsgField {
 		String type, name; boolean array;
 		type = line.substring(0, line.indexOf(' ')).trim();
 		name = line.substring(line.indexOf(' ')).trim();
-		if(type.length() > 2 && type.substring(type.length() - 2).equals("[]")) {
+		// variable (type[]) or fixed size (type[N]) array:
+		int iob = type.indexOf('[');
+		if(iob > 0 && type.endsWith("]")) {
 			array = true;
-			type = type.substring(0, type.length() - 2);
+			type = type.substring(0, iob);
 		} else {
 			array = false;
 		}
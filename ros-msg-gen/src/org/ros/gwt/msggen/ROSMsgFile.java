@@ -1,9 +1,12 @@
 package org.ros.gwt.msggen;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,20 +19,46 @@ import java.util.List;
 public class ROSMsgFile {
 	public final List<ROSMsgField> fields = new ArrayList<ROSMsgField>();
 	
-	protected ROSMsgFile() {}
+	/**
+	 * SHA-1 of the .msg file contents.
+	 */
+	public final String contentHash;
+	
+	protected ROSMsgFile(String contentHash) {
+		this.contentHash = contentHash;
+	}
 	
 	public static ROSMsgFile parse(File f) throws IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(f));
+		byte[] data = readFully(f);
+		BufferedReader reader = new BufferedReader(new StringReader(new String(data)));
 		String line;
-		ROSMsgFile ret = new ROSMsgFile();
-		while((line = reader.readLine()) != null) {
-			line = stripComments(line);
-			if(line.equals("")) continue;
-			ret.fields.add(ROSMsgField.parse(line));
+		ROSMsgFile ret = new ROSMsgFile(MsgGenManifest.hash(data));
+		try {
+			while((line = reader.readLine()) != null) {
+				line = stripComments(line);
+				if(line.equals("")) continue;
+				ret.fields.add(ROSMsgField.parse(line));
+			}
+		} finally {
+			reader.close();
 		}
 		return ret;
 	}
 	
+	static byte[] readFully(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream((int)f.length());
+			byte[] buf = new byte[8192];
+			int n;
+			while((n = is.read(buf)) > 0)
+				os.write(buf, 0, n);
+			return os.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+	
 	static String stripComments(String line) {
 		int p = line.indexOf('#');
 		if(p >= 0)
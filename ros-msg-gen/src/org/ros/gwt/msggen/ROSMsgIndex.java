@@ -0,0 +1,175 @@
+package org.ros.gwt.msggen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of the .msg files found under a search path.
+ *
+ * The search path is walked only once; lookups by (package, type)
+ * are then answered from the index.
+ *
+ * A file is indexed as pkg/Type when its canonical path ends with
+ * <code>pkg/msg/Type.msg</code>.
+ * 
+ * When a type is found more than once, matches are ordered by search
+ * path root first (as in ROS_PACKAGE_PATH), then by path name.
+ *
+ * @author Federico Ferri
+ *
+ */
+public class ROSMsgIndex {
+	private static final String MSG_EXT = ".msg";
+
+	/**
+	 * Files keyed by full type name (pkg/Type).
+	 */
+	private final Map<String, Set<File>> byFullType = new HashMap<String, Set<File>>();
+
+	/**
+	 * Files keyed by bare type name (Type), for lookups without a package.
+	 */
+	private final Map<String, Set<File>> byType = new HashMap<String, Set<File>>();
+
+	private final List<File> roots;
+
+	private int fileCount = 0;
+
+	protected ROSMsgIndex(List<File> roots) {
+		this.roots = roots;
+	}
+
+	/**
+	 * Walk the directory tree once and index every .msg file found.
+	 *
+	 * @param root Root of the search path.
+	 * @return The index.
+	 */
+	public static ROSMsgIndex scan(File root) {
+		return scan(Collections.singletonList(root));
+	}
+
+	/**
+	 * Walk each directory tree once, in order, and index every .msg file found.
+	 *
+	 * @param roots Roots of the search path, in order of precedence.
+	 * @return The index.
+	 */
+	public static ROSMsgIndex scan(List<File> roots) {
+		for(File root : roots) {
+			if(!root.isDirectory()) throw new IllegalArgumentException(root.getAbsolutePath() + " is not a directory");
+		}
+		ROSMsgIndex index = new ROSMsgIndex(new ArrayList<File>(roots));
+		for(File root : roots)
+			index.walk(root);
+		return index;
+	}
+
+	/**
+	 * Split a search path (e.g. ROS_PACKAGE_PATH) into its roots.
+	 *
+	 * @param searchPath Directories separated by {@link File#pathSeparator}.
+	 * @return The list of roots.
+	 */
+	public static List<File> splitSearchPath(String searchPath) {
+		List<File> roots = new ArrayList<File>();
+		for(String dir : searchPath.split(File.pathSeparator)) {
+			if(!dir.isEmpty()) roots.add(new File(dir));
+		}
+		return roots;
+	}
+
+	private void walk(File dir) {
+		File fs[] = dir.listFiles();
+		if(fs == null) return;
+		Arrays.sort(fs);
+		for(File f : fs) {
+			String name = f.getName();
+			if(name.endsWith(MSG_EXT) && f.isFile())
+				add(f);
+			else if(f.isDirectory())
+				walk(f);
+		}
+	}
+
+	private void add(File f) {
+		try {f = f.getCanonicalFile();} catch(IOException e) {}
+		File msgDir = f.getParentFile();
+		if(msgDir == null || !msgDir.getName().equals("msg")) return;
+		File pkgDir = msgDir.getParentFile();
+		if(pkgDir == null) return;
+		String name = f.getName();
+		String type = name.substring(0, name.length() - MSG_EXT.length());
+		// a file reached twice (through a symlink) is indexed once:
+		if(!put(byFullType, pkgDir.getName() + "/" + type, f)) return;
+		put(byType, type, f);
+		fileCount++;
+	}
+
+	private static boolean put(Map<String, Set<File>> m, String key, File f) {
+		Set<File> s = m.get(key);
+		if(s == null) m.put(key, s = new LinkedHashSet<File>());
+		return s.add(f);
+	}
+
+	/**
+	 * Find the .msg files matching a message name.
+	 *
+	 * @param msgName Message name, either "pkg/Type" or "Type".
+	 * @return The (possibly empty) set of matching files.
+	 */
+	public Set<File> find(String msgName) {
+		ROSMsgType msgType = ROSMsgType.parse(msgName);
+		Set<File> s = msgType.pkg == null
+				? byType.get(msgType.type)
+				: byFullType.get(msgType.pkg + "/" + msgType.type);
+		if(s == null) return Collections.emptySet();
+		return Collections.unmodifiableSet(s);
+	}
+
+	/**
+	 * List the message types (pkg/Type) indexed for a package.
+	 *
+	 * @param pkg The package name.
+	 * @return The sorted list of full type names.
+	 */
+	public List<String> listPackage(String pkg) {
+		List<String> ret = new ArrayList<String>();
+		String prefix = pkg + "/";
+		for(String fullType : byFullType.keySet()) {
+			if(fullType.startsWith(prefix))
+				ret.add(fullType);
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * @return The number of distinct .msg files indexed.
+	 */
+	public int size() {
+		return fileCount;
+	}
+
+	public List<File> getRoots() {
+		return Collections.unmodifiableList(roots);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(File root : roots) {
+			if(sb.length() > 0) sb.append(File.pathSeparator);
+			sb.append(root.getAbsolutePath());
+		}
+		return sb.toString();
+	}
+}
@@ -20,9 +20,11 @@ public class ROSMsgType {
 	public static ROSMsgType parse(String line) {
 		String type, pkg = null; boolean array;
 		type = line.trim();
-		if(type.length() > 2 && type.substring(type.length() - 2).equals("[]")) {
+		// variable (type[]) or fixed size (type[N]) array:
+		int iob = type.indexOf('[');
+		if(iob > 0 && type.endsWith("]")) {
 			array = true;
-			type = type.substring(0, type.length() - 2);
+			type = type.substring(0, iob);
 		} else {
 			array = false;
 		}